@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of buffers in size classes, the powers of two between a minimum and
+ * a maximum size.  A buffer is taken from the class of the smallest buffers
+ * large enough, and its limit set to the size asked for.  Sizes above the
+ * maximum are allocated and dropped without pooling, on the heap, so that
+ * one-off large buffers do not hold on to direct memory until they are
+ * collected.  Each class keeps at most a given number of free buffers; the
+ * rest are left to the garbage collector.
+ *
+ * <p>Threads may take and return buffers concurrently.  A buffer must not
+ * be used once it is returned.
+ */
+public class BufferPool {
+    private final int minShift;
+    private final int maxShift;
+    private final int maxFreePerClass;
+    private final boolean direct;
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+
+    /**
+     * @param minSize size of the smallest buffers, rounded up to a power of two
+     * @param maxSize size of the largest pooled buffers, rounded up to a power
+     *                of two
+     * @param maxFreePerClass most free buffers kept in each size class;
+     *                        0 not to pool at all
+     * @param direct whether to allocate direct buffers
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, int maxFreePerClass, boolean direct) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid sizes " + minSize + ", " + maxSize);
+        }
+        this.minShift = shiftFor(minSize);
+        this.maxShift = shiftFor(maxSize);
+        this.maxFreePerClass = maxFreePerClass;
+        this.direct = direct;
+        final int classes = maxShift - minShift + 1;
+        this.free = (Queue<ByteBuffer>[]) new Queue<?>[classes];
+        this.freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /** @return the log2 of the smallest power of two not below size */
+    private static int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Take a buffer.
+     * @param size bytes needed
+     * @return a buffer with its position at 0 and its limit at size
+     */
+    public ByteBuffer take(int size) {
+        final int shift = Math.max(shiftFor(size), minShift);
+        if (shift > maxShift) {
+            return ByteBuffer.allocate(size);
+        }
+        final int index = shift - minShift;
+        ByteBuffer buffer = free[index].poll();
+        if (buffer == null) {
+            buffer = allocate(1 << shift);
+        } else {
+            freeCounts[index].decrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return a buffer taken from this pool.  Buffers of any other size are
+     * ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct) {
+            return;
+        }
+        final int capacity = buffer.capacity();
+        final int shift = shiftFor(capacity);
+        if (capacity != 1 << shift || shift < minShift || shift > maxShift) {
+            return;
+        }
+        final int index = shift - minShift;
+        if (freeCounts[index].incrementAndGet() > maxFreePerClass) {
+            freeCounts[index].decrementAndGet();
+            return;
+        }
+        free[index].offer(buffer);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.io;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} that writes into a buffer taken from a
+ * {@link BufferPool}.  When the buffer is full, a larger one is taken from
+ * the pool, and the full one returned to it.
+ *
+ * <p>Typical usage is something like the following:<pre>
+ *
+ * ByteBufferOutputStream out = new ByteBufferOutputStream(pool, expectedSize);
+ * ... write to out ...
+ * ByteBuffer data = out.getBuffer();
+ * ... read data, then pool.release(data) ...
+ * </pre>
+ */
+public class ByteBufferOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    /**
+     * @param pool the pool to take the buffers from
+     * @param initialSize bytes expected to be written
+     */
+    public ByteBufferOutputStream(BufferPool pool, int initialSize) {
+        this.pool = pool;
+        this.buffer = pool.take(initialSize);
+        buffer.limit(buffer.capacity());
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    private void ensureRemaining(int len) {
+        if (buffer.remaining() >= len) {
+            return;
+        }
+        final long needed = (long) buffer.position() + len;
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Buffer of more than 2GB");
+        }
+        final ByteBuffer larger = pool.take(
+                (int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity())));
+        larger.limit(larger.capacity());
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        buffer = larger;
+    }
+
+    /** @return the number of bytes written */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Finish writing.  The buffer is to be returned to the pool once it is
+     * read; the stream is not to be written to any more.
+     * @return the buffer written, from its position 0 to its limit
+     */
+    public ByteBuffer getBuffer() {
+        final ByteBuffer written = buffer;
+        written.flip();
+        buffer = null;
+        return written;
+    }
+
+    /** Return the buffer to the pool, discarding what was written. */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
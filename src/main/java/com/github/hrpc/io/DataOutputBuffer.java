@@ -101,6 +101,22 @@ public class DataOutputBuffer extends DataOutputStream {
         buffer.write(in, length);
     }
 
+    /**
+     * Overwrite an integer at the given offset of data already written,
+     * e.g. a length prefix that is only known once the data follows it.
+     */
+    public void writeInt(int v, int offset) throws IOException {
+        if (offset < 0 || offset + 4 > getLength()) {
+            throw new IOException("Offset " + offset + " out of range of "
+                    + getLength() + " bytes written");
+        }
+        byte[] buf = getData();
+        buf[offset] = (byte) (v >>> 24);
+        buf[offset + 1] = (byte) (v >>> 16);
+        buf[offset + 2] = (byte) (v >>> 8);
+        buf[offset + 3] = (byte) v;
+    }
+
     /** Write to a file stream */
     public void writeTo(OutputStream out) throws IOException {
         buffer.writeTo(out);
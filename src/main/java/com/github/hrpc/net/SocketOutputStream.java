@@ -27,6 +27,7 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
@@ -154,6 +155,61 @@ public class SocketOutputStream extends OutputStream
         return writer.doIO(src, SelectionKey.OP_WRITE);
     }
 
+    /**
+     * Writes the remaining bytes of a sequence of buffers, gathering as many
+     * of them into each write as the channel accepts.  Similar to write(),
+     * this waits till all the data is written, and the timeout for this
+     * stream applies to each wait for the channel to become writable.
+     *
+     * @param srcs the buffers to write
+     * @param offset index of the first buffer to write
+     * @param length number of buffers to write
+     * @throws SocketTimeoutException
+     *         if the channel does not become writable within the timeout.
+     * @throws IOException
+     *         if any other I/O error occurs; the stream is then closed if
+     *         some of the data was written.
+     */
+    public void writeFully(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+        if (!(writer.channel instanceof GatheringByteChannel)) {
+            for (int i = offset; i < offset + length; i++) {
+                while (srcs[i].hasRemaining()) {
+                    write(srcs[i]);
+                }
+            }
+            return;
+        }
+        GatheringByteChannel channel = (GatheringByteChannel) writer.channel;
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += srcs[i].remaining();
+        }
+        boolean written = false;
+        try {
+            while (remaining > 0) {
+                long n = channel.write(srcs, offset, length);
+                remaining -= n;
+                written |= n > 0;
+                if (remaining > 0) {
+                    while (!srcs[offset].hasRemaining()) {
+                        offset++;
+                        length--;
+                    }
+                    if (n == 0) {
+                        waitForWritable();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // as in write(), a partial write leaves the stream unusable
+            if (written) {
+                writer.close();
+            }
+            throw e;
+        }
+    }
+
     /**
      * waits for the underlying channel to be ready for writing.
      * The timeout specified for this stream applies to this wait.
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.github.hrpc.rpc.Client.ConnectionId;
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+
+/**
+ * An invocation handler that spreads calls over a set of equivalent servers.
+ * Each call goes to the cheaper of two servers picked at random, the cost of
+ * a server being its latency times the number of calls it would have
+ * outstanding.  Picking the best of two rather than the best of all keeps
+ * clients from all rushing to the same server, while hot or slow servers
+ * are still avoided.
+ *
+ * The latency of a server is a moving average of the latencies of its calls
+ * that jumps to a latency above it at once, and decays over
+ * <code>ipc.client.balancing.decay</code> msecs otherwise.  It also decays
+ * while the server gets no call, so a server that was slow is tried again
+ * after a while.  A call the server did not answer, as when it is down,
+ * counts as taking at least the decay time, so that a server failing fast
+ * is not taken for the fastest one.
+ *
+ * The handler works in asynchronous mode, see
+ * {@link Client#setAsynchronousMode(boolean)}, as well.
+ *
+ * @see RPC#getBalancingProxy(Class, long, List, Option)
+ */
+public class BalancingInvocationHandler<T> implements RpcInvocationHandler {
+    /** The cost of a server with calls outstanding but no latency yet. */
+    private static final double PENALTY = Long.MAX_VALUE >> 16;
+
+    private final List<T> proxies;
+    private final ServerStats[] stats;
+
+    /**
+     * @param protocol the protocol the proxies implement
+     * @param proxies a proxy for each server
+     * @param conf configuration
+     */
+    public BalancingInvocationHandler(Class<T> protocol, List<T> proxies,
+                                      Option conf) {
+        if (proxies.isEmpty()) {
+            throw new IllegalArgumentException("No proxy to balance " + protocol);
+        }
+        this.proxies = new ArrayList<T>(proxies);
+        final long decay = TimeUnit.MILLISECONDS.toNanos(conf.getInt(
+                CommonConfigurationKeys.IPC_CLIENT_BALANCING_DECAY_KEY,
+                CommonConfigurationKeys.IPC_CLIENT_BALANCING_DECAY_DEFAULT));
+        this.stats = new ServerStats[proxies.size()];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new ServerStats(decay);
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        final int i = choose();
+        final ServerStats server = stats[i];
+        server.outstanding.incrementAndGet();
+        final long startTime = System.nanoTime();
+        boolean completed = true;
+        Throwable failure = null;
+        try {
+            final Object value = method.invoke(proxies.get(i), args);
+            if (Client.isAsynchronousMode()) {
+                final CompletableFuture<Object> future = Client.getAsyncReturnValue();
+                if (future != null) {
+                    completed = false;
+                    future.whenComplete(new BiConsumer<Object, Throwable>() {
+                        @Override
+                        public void accept(Object result, Throwable t) {
+                            server.complete(System.nanoTime() - startTime, t);
+                        }
+                    });
+                    Client.setAsyncReturnValue(future);
+                }
+            }
+            return value;
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+            throw failure;
+        } finally {
+            if (completed) {
+                server.complete(System.nanoTime() - startTime, failure);
+            }
+        }
+    }
+
+    /** @return the index of the server to send a call to */
+    private int choose() {
+        if (stats.length == 1) {
+            return 0;
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int a = random.nextInt(stats.length);
+        int b = random.nextInt(stats.length - 1);
+        if (b >= a) {
+            b++;
+        }
+        final double costA = stats[a].getCost();
+        final double costB = stats[b].getCost();
+        if (costA != costB) {
+            return costA < costB ? a : b;
+        }
+        return stats[a].outstanding.get() <= stats[b].outstanding.get() ? a : b;
+    }
+
+    /** The load of a server, as seen by this client. */
+    static class ServerStats {
+        final AtomicInteger outstanding = new AtomicInteger();
+        private final double decay;      // nanos
+        private double latency;          // nanos
+        private long stamp = System.nanoTime();
+
+        ServerStats(long decay) {
+            this.decay = decay;
+        }
+
+        /**
+         * Record the completion of a call that took <code>rtt</code> nanos.
+         * @param failure what the call failed with, or null
+         */
+        void complete(long rtt, Throwable failure) {
+            outstanding.decrementAndGet();
+            observe(failure == null || isAnswered(failure) ? rtt : Math.max(rtt, decay));
+        }
+
+        /** @return whether a call that failed got a response from the server */
+        private static boolean isAnswered(Throwable failure) {
+            for (Throwable t = failure; t != null; t = t.getCause()) {
+                if (t instanceof RemoteException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized double observe(double rtt) {
+            final long now = System.nanoTime();
+            final double w = Math.exp(-Math.max(now - stamp, 0) / decay);
+            if (rtt > latency) {
+                latency = rtt;
+            } else {
+                latency = latency * w + rtt * (1 - w);
+            }
+            stamp = now;
+            return latency;
+        }
+
+        /** @return the latency times the calls outstanding with one more */
+        double getCost() {
+            final int calls = outstanding.get();
+            final double current = observe(0);
+            if (current == 0 && calls > 0) {
+                return PENALTY + calls;
+            }
+            return current * (calls + 1);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (T proxy : proxies) {
+            RPC.stopProxy(proxy);
+        }
+    }
+
+    /** @return the connection of the first server */
+    @Override
+    public ConnectionId getConnectionId() {
+        return RPC.getConnectionIdForProxy(proxies.get(0));
+    }
+}
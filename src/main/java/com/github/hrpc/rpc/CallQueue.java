@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+/**
+ * The queue of calls between the readers and the handlers of a
+ * {@link Server}.  The readers add the calls they decode, and the handlers
+ * take them in the order the queue decides.
+ *
+ * An implementation must be thread safe and have a public constructor
+ * taking the capacity of the queue and the configuration of the server,
+ * <code>(int, Option)</code>.  The server uses the implementation named by
+ * <code>ipc.server.callqueue.impl</code>, {@link FifoCallQueue} by default.
+ */
+public interface CallQueue {
+
+    /**
+     * Add a call, waiting for space if the queue is full.
+     * @param call the call to add
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void put(Server.Call call) throws InterruptedException;
+
+    /**
+     * Add a call if there is space for it.
+     * @param call the call to add
+     * @return false if the queue is full
+     */
+    boolean offer(Server.Call call);
+
+    /**
+     * Remove the next call, waiting for one if the queue is empty.
+     * @return the call
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Server.Call take() throws InterruptedException;
+
+    /** @return the number of calls in the queue */
+    int size();
+}
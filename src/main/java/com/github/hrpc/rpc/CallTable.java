@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The calls in flight on a client connection, keyed by call id.
+ *
+ * This is an open addressing table over an {@link AtomicReferenceArray}:
+ * a call lives in slot <code>id &amp; mask</code>, or in one of the next slots
+ * if that one is taken.  Call ids come from {@link Client#nextCallId()}, so
+ * the calls in flight hold a narrow range of ids and seldom collide.  Adding
+ * and removing a call is a compare-and-set on its slot; nothing is boxed or
+ * allocated.
+ *
+ * Removal leaves a plain empty slot rather than a tombstone, so a lookup
+ * cannot stop at the first empty slot; it probes as far as the largest
+ * displacement of any insertion into the table instead.  When an insertion
+ * finds no free slot close to home, or the table becomes half full, the
+ * table is doubled.  The resize marks each old slot {@link #MOVED} while
+ * copying it, and an operation that runs into a moved slot waits for the
+ * resize to finish and retries on the new table.
+ */
+class CallTable {
+    private static final int INITIAL_CAPACITY = 16;
+    /** Probe no further than this to find a free slot; grow instead. */
+    private static final int MAX_PROBES = 8;
+
+    /** Marks a slot whose content has been copied to a new table. */
+    private static final Client.Call MOVED = new Client.Call(null, null) {
+        @Override
+        public String toString() {
+            return "MOVED";
+        }
+    };
+
+    private static class Table {
+        final AtomicReferenceArray<Client.Call> slots;
+        final int mask;
+        /** The largest displacement of a call from its home slot. */
+        final AtomicInteger maxProbe = new AtomicInteger();
+
+        Table(int capacity) {
+            this.slots = new AtomicReferenceArray<Client.Call>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        /** Raise maxProbe to at least probe. */
+        void probed(int probe) {
+            int max;
+            while ((max = maxProbe.get()) < probe) {
+                if (maxProbe.compareAndSet(max, probe)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private final AtomicInteger size = new AtomicInteger();
+    private final Object resizeLock = new Object();
+
+    /** @return the number of calls in the table */
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Add a call.  The table must not already hold a call with the same id.
+     */
+    void put(Client.Call call) {
+        while (true) {
+            final Table t = table;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final int i = (call.id + probe) & t.mask;
+                final Client.Call c = t.slots.get(i);
+                if (c == MOVED) {
+                    break;
+                } else if (c == null) {
+                    // publish the displacement before the call can be looked up
+                    t.probed(probe);
+                    if (t.slots.compareAndSet(i, null, call)) {
+                        if (size.incrementAndGet() * 2 > t.slots.length()) {
+                            resize(t);
+                        }
+                        return;
+                    }
+                    probe--; // the slot changed under us; look at it again
+                }
+            }
+            resize(t);
+        }
+    }
+
+    /**
+     * Remove the call with the given id.
+     * @return the call, or null if there is none
+     */
+    Client.Call remove(int id) {
+        return remove(id, null);
+    }
+
+    /**
+     * Remove the call with the given id, if it is <code>call</code> or if
+     * <code>call</code> is null.
+     * @return the removed call, or null if nothing was removed
+     */
+    Client.Call remove(int id, Client.Call call) {
+        retry:
+        while (true) {
+            final Table t = table;
+            final int maxProbe = t.maxProbe.get();
+            for (int probe = 0; probe <= maxProbe; probe++) {
+                final int i = (id + probe) & t.mask;
+                final Client.Call c = t.slots.get(i);
+                if (c == MOVED) {
+                    awaitResize(t);
+                    continue retry;
+                } else if (c != null && c.id == id) {
+                    if (call != null && c != call) {
+                        return null;
+                    }
+                    if (t.slots.compareAndSet(i, c, null)) {
+                        size.decrementAndGet();
+                        return c;
+                    }
+                    probe--; // the slot changed under us; look at it again
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Remove all the calls.  Calls added concurrently may or may not be
+     * removed.
+     * @return the removed calls
+     */
+    List<Client.Call> removeAll() {
+        final List<Client.Call> removed = new ArrayList<Client.Call>();
+        retry:
+        while (true) {
+            final Table t = table;
+            for (int i = 0; i < t.slots.length(); i++) {
+                final Client.Call c = t.slots.get(i);
+                if (c == MOVED) {
+                    awaitResize(t);
+                    continue retry;
+                } else if (c != null) {
+                    if (t.slots.compareAndSet(i, c, null)) {
+                        size.decrementAndGet();
+                        removed.add(c);
+                    } else {
+                        i--; // the slot changed under us; look at it again
+                    }
+                }
+            }
+            return removed;
+        }
+    }
+
+    /** Wait until t has been replaced by a resize. */
+    private void awaitResize(Table t) {
+        synchronized (resizeLock) {
+            // the resize holds the lock until the new table is published
+        }
+    }
+
+    /** Replace t by a table twice as large, unless that was done already. */
+    private void resize(Table t) {
+        synchronized (resizeLock) {
+            if (table != t) {
+                return;
+            }
+            final Table newTable = new Table(t.slots.length() * 2);
+            for (int i = 0; i < t.slots.length(); i++) {
+                Client.Call c;
+                do {
+                    c = t.slots.get(i);
+                } while (!t.slots.compareAndSet(i, c, MOVED));
+                if (c != null) {
+                    // no other thread can see the new table yet
+                    for (int probe = 0; ; probe++) {
+                        final int j = (c.id + probe) & newTable.mask;
+                        if (newTable.slots.get(j) == null) {
+                            newTable.slots.set(j, c);
+                            newTable.probed(probe);
+                            break;
+                        }
+                    }
+                }
+            }
+            table = newTable;
+        }
+    }
+}
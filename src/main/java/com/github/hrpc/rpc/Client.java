@@ -23,6 +23,7 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,28 +33,38 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import javax.net.SocketFactory;
 
+import com.github.hrpc.io.DataInputBuffer;
 import com.github.hrpc.io.DataOutputBuffer;
 import com.github.hrpc.io.Writable;
 import com.github.hrpc.net.ConnectTimeoutException;
 import com.github.hrpc.net.NetUtils;
+import com.github.hrpc.net.SocketOutputStream;
 import com.github.hrpc.util.*;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -88,6 +99,23 @@ public class Client {
     private static final ThreadLocal<Integer> callId = new ThreadLocal<Integer>();
     private static final ThreadLocal<Integer> retryCount = new ThreadLocal<Integer>();
 
+    /** Fails the asynchronous calls that are not done by their deadline. */
+    private static final ScheduledThreadPoolExecutor CALL_TIMER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("IPC Client call timer")
+                    .build());
+    static {
+        CALL_TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Sends the pings due on the connections of the response readers. */
+    private static final ExecutorService PING_SENDER =
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("IPC Client ping sender #%d")
+                    .build());
+
     /** Set call id and retry count for the next call. */
     public static void setCallIdAndRetryCount(int cid, int rc) {
         Preconditions.checkArgument(cid != RpcConstants.INVALID_CALL_ID);
@@ -98,8 +126,57 @@ public class Client {
         retryCount.set(rc);
     }
 
-    private Hashtable<ConnectionId, Connection> connections =
-            new Hashtable<ConnectionId, Connection>();
+    private static final ThreadLocal<Boolean> asynchronousMode =
+            new ThreadLocal<Boolean>() {
+                @Override
+                protected Boolean initialValue() {
+                    return false;
+                }
+            };
+    private static final ThreadLocal<CompletableFuture<?>> asyncReturnValue =
+            new ThreadLocal<CompletableFuture<?>>();
+
+    /**
+     * Set the calling thread's proxies to asynchronous mode.  In asynchronous
+     * mode a proxy method returns immediately with a dummy value (null, or
+     * zero/false for primitives) and the future of the real return value is
+     * retrieved with {@link #getAsyncReturnValue()}.
+     *
+     * @param async true to make the following proxy calls asynchronous
+     */
+    public static void setAsynchronousMode(boolean async) {
+        asynchronousMode.set(async);
+    }
+
+    /** @return whether the calling thread's proxies are asynchronous. */
+    public static boolean isAsynchronousMode() {
+        return asynchronousMode.get();
+    }
+
+    /**
+     * Retrieve the future of the last proxy call made by this thread in
+     * asynchronous mode, and clear it.  The future fails with the exception
+     * the synchronous call would have thrown.  Dependent actions attached with
+     * the non-async methods of {@link CompletableFuture} run on the thread
+     * that receives the response, so they must not block.
+     *
+     * @return the future of the return value, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompletableFuture<T> getAsyncReturnValue() {
+        final CompletableFuture<T> value =
+                (CompletableFuture<T>) asyncReturnValue.get();
+        asyncReturnValue.set(null);
+        return value;
+    }
+
+    static void setAsyncReturnValue(CompletableFuture<?> value) {
+        asyncReturnValue.set(value);
+    }
+
+    // the sockets to each server; a slot is null until it is needed
+    private Hashtable<ConnectionId, Connection[]> connections =
+            new Hashtable<ConnectionId, Connection[]>();
 
     private Class<? extends Writable> valueClass;   // class of call values
     private AtomicBoolean running = new AtomicBoolean(true); // if client runs
@@ -113,19 +190,11 @@ public class Client {
     private final boolean fallbackAllowed;
     private final byte[] clientId;
 
-    final static int CONNECTION_CONTEXT_CALL_ID = -3;
+    private final int selectorThreads;  // 0 if each connection reads itself
+    private ResponseReader[] responseReaders;
+    private int nextResponseReader;
 
-    /**
-     * Executor on which IPC calls' parameters are sent. Deferring
-     * the sending of parameters to a separate thread isolates them
-     * from thread interruptions in the calling code.
-     */
-    private static final ExecutorService SEND_PARAMS_EXECUTOR =
-            Executors.newCachedThreadPool(
-                    new ThreadFactoryBuilder()
-                            .setDaemon(true)
-                            .setNameFormat("IPC Parameter Sending Thread #%d")
-                            .build());
+    final static int CONNECTION_CONTEXT_CALL_ID = -3;
 
 
     /**
@@ -233,8 +302,10 @@ public class Client {
         IOException error;          // exception, null if success
         final RPC.RpcKind rpcKind;      // Rpc EngineKind
         boolean done;               // true when call is done
+        int timeout;                // msecs the caller waits; 0 if forever
+        long deadline;              // monotonic time the caller gives up at
 
-        private Call(RPC.RpcKind rpcKind, Writable param) {
+        Call(RPC.RpcKind rpcKind, Writable param) {
             this.rpcKind = rpcKind;
             this.rpcRequest = param;
 
@@ -284,6 +355,144 @@ public class Client {
         public synchronized Writable getRpcResponse() {
             return rpcResponse;
         }
+
+        /** Give up on the call <code>timeout</code> msecs from now; 0 means
+         * never. */
+        void setTimeout(int timeout) {
+            this.timeout = timeout;
+            this.deadline = timeout > 0 ? Time.monotonicNow() + timeout : 0;
+        }
+
+        /** @return msecs left until the deadline, at least 1; or 0 if the
+         * call has no timeout */
+        int getRemainingTime() {
+            if (timeout <= 0) {
+                return 0;
+            }
+            return (int) Math.max(1, deadline - Time.monotonicNow());
+        }
+
+        SocketTimeoutException timeoutException() {
+            return new SocketTimeoutException("Call #" + id
+                    + " timed out after " + timeout + " ms");
+        }
+    }
+
+    /**
+     * A call whose completion is delivered through a {@link CompletableFuture}
+     * instead of waking up a waiting caller.
+     */
+    private class AsyncCall extends Call {
+        private final ConnectionId remoteId;
+        private volatile Connection connection;
+        private final CompletableFuture<Writable> future =
+                new CompletableFuture<Writable>() {
+                    @Override
+                    public boolean cancel(boolean mayInterruptIfRunning) {
+                        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                        final Connection c = connection;
+                        if (cancelled && c != null) {
+                            // forget the call; its response will be skipped
+                            c.removeCall(AsyncCall.this);
+                        }
+                        return cancelled;
+                    }
+                };
+
+        private AsyncCall(RPC.RpcKind rpcKind, Writable param,
+                          ConnectionId remoteId) {
+            super(rpcKind, param);
+            this.remoteId = remoteId;
+        }
+
+        /** Fail the call if it is not done by its deadline. */
+        private void scheduleTimeout() {
+            final ScheduledFuture<?> timer = CALL_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // unless the response is being delivered right now
+                    if (connection.removeCall(AsyncCall.this)) {
+                        setException(timeoutException());
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<Writable, Throwable>() {
+                @Override
+                public void accept(Writable value, Throwable t) {
+                    timer.cancel(false);
+                }
+            });
+        }
+
+        @Override
+        protected synchronized void callComplete() {
+            this.done = true;
+            if (error == null) {
+                future.complete(rpcResponse);
+            } else if (error instanceof RemoteException) {
+                error.fillInStackTrace();
+                future.completeExceptionally(error);
+            } else { // local exception
+                final Connection c = connection;
+                InetSocketAddress address =
+                        c != null ? c.getRemoteAddress() : remoteId.getAddress();
+                future.completeExceptionally(NetUtils.wrapException(
+                        address.getHostName(),
+                        address.getPort(),
+                        NetUtils.getHostname(),
+                        0,
+                        error));
+            }
+        }
+    }
+
+    /**
+     * The future of a value converted from the response of an asynchronous
+     * call.  Cancelling it cancels the underlying call.
+     */
+    abstract static class AsyncReturnValue<T> extends CompletableFuture<T>
+            implements BiConsumer<Writable, Throwable> {
+        private final CompletableFuture<Writable> response;
+
+        AsyncReturnValue(CompletableFuture<Writable> response) {
+            this.response = response;
+        }
+
+        /** Start converting once the response arrives. */
+        AsyncReturnValue<T> start() {
+            response.whenComplete(this);
+            return this;
+        }
+
+        /** Convert a successful response to the return value. */
+        abstract T convert(Writable response) throws Exception;
+
+        /** Convert a failure to the exception the caller will see. */
+        Throwable convertException(Throwable t) {
+            return t;
+        }
+
+        @Override
+        public void accept(Writable value, Throwable t) {
+            if (t != null) {
+                completeExceptionally(convertException(t));
+                return;
+            }
+            try {
+                complete(convert(value));
+            } catch (Throwable e) {
+                completeExceptionally(convertException(e));
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                response.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
     }
 
     /** Thread that reads responses and notifies callers.  Each connection owns a
@@ -292,6 +501,7 @@ public class Client {
     private class Connection extends Thread {
         private InetSocketAddress server;             // server ip:port
         private final ConnectionId remoteId;                // connection id
+        private final int slot;                       // index in the pool of remoteId
         private int serviceClass;
 
         private Socket socket = null;                 // connected socket
@@ -305,18 +515,32 @@ public class Client {
         private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
         private boolean doPing; //do we need to send ping message
         private int pingInterval; // how often sends ping to the server in msecs
-        private ByteArrayOutputStream pingRequest; // ping message
+        private ByteBuffer pingRequest; // ping message, with its length
+        // set while a ping is handed off to PING_SENDER
+        private final AtomicBoolean pingPending = new AtomicBoolean();
 
         // currently active calls
-        private Hashtable<Integer, Call> calls = new Hashtable<Integer, Call>();
+        private final CallTable calls = new CallTable();
         private AtomicLong lastActivity = new AtomicLong();// last I/O activity time
         private AtomicBoolean shouldCloseConnection = new AtomicBoolean();  // indicate if the connection is closed
         private IOException closeException; // close reason
 
-        private final Object sendRpcRequestLock = new Object();
+        // framed requests waiting to be written by the thread that flushes
+        private final Queue<ByteBuffer> pendingRequests =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicBoolean flushing = new AtomicBoolean();
+        private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+        private SocketOutputStream channelOut; // null if the socket has no channel
+
+        // set if a ResponseReader reads for this connection instead of itself
+        private ResponseReader responseReader;
+        private final ByteBuffer responseLength = ByteBuffer.allocate(4);
+        private ByteBuffer response;   // the partially read response
 
-        public Connection(ConnectionId remoteId, int serviceClass) throws IOException {
+        public Connection(ConnectionId remoteId, int slot, int serviceClass)
+                throws IOException {
             this.remoteId = remoteId;
+            this.slot = slot;
             this.server = remoteId.getAddress();
             if (server.isUnresolved()) {
                 throw NetUtils.wrapException(server.getHostName(),
@@ -333,12 +557,14 @@ public class Client {
             this.doPing = remoteId.getDoPing();
             if (doPing) {
                 // construct a RPC header with the callId as the ping callId
-                pingRequest = new ByteArrayOutputStream();
+                ByteArrayOutputStream ping = new ByteArrayOutputStream();
                 RpcRequestHeaderProto pingHeader = ProtoUtil
                         .makeRpcRequestHeader(RpcKind.RPC_PROTOCOL_BUFFER,
                                 OperationProto.RPC_FINAL_PACKET, RpcConstants.PING_CALL_ID,
                                 RpcConstants.INVALID_RETRY_COUNT, clientId);
-                pingHeader.writeDelimitedTo(pingRequest);
+                pingHeader.writeDelimitedTo(ping);
+                pingRequest = ByteBuffer.allocate(4 + ping.size());
+                pingRequest.putInt(ping.size()).put(ping.toByteArray()).flip();
             }
             this.pingInterval = remoteId.getPingInterval();
             this.serviceClass = serviceClass;
@@ -347,7 +573,7 @@ public class Client {
             }
 
             this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
-                    server.toString());
+                    server.toString() + (slot > 0 ? " #" + slot : ""));
             this.setDaemon(true);
         }
 
@@ -366,11 +592,24 @@ public class Client {
         private synchronized boolean addCall(Call call) {
             if (shouldCloseConnection.get())
                 return false;
-            calls.put(call.id, call);
+            if (calls.isEmpty()) {
+                // the response timeout starts now rather than at the last
+                // response of an idle connection
+                touch();
+            }
+            calls.put(call);
             notify();
             return true;
         }
 
+        /**
+         * Forget a call that no longer expects a response.
+         * @return true if the call was outstanding
+         */
+        private boolean removeCall(Call call) {
+            return calls.remove(call.id, call) != null;
+        }
+
         /** This class sends a ping to the remote side when timeout on
          * reading. If no failure is detected, it retries until at least
          * a byte is read.
@@ -500,6 +739,9 @@ public class Client {
                     setupConnection();
                     InputStream inStream = NetUtils.getInputStream(socket);
                     OutputStream outStream = NetUtils.getOutputStream(socket);
+                    if (outStream instanceof SocketOutputStream) {
+                        channelOut = (SocketOutputStream) outStream;
+                    }
                     writeConnectionHeader(outStream);
 
                     if (doPing) {
@@ -514,13 +756,20 @@ public class Client {
                     this.out = new DataOutputStream(outStream);
 
                     writeConnectionContext(remoteId);
+                    // requests may bypass out from now on
+                    out.flush();
 
                     // update last activity time
                     touch();
 
                     // start the receiver thread after the socket connection has been set
-                    // up
-                    start();
+                    // up, or let a shared selector thread read the responses
+                    if (selectorThreads > 0 && socket.getChannel() != null) {
+                        responseReader = getResponseReader();
+                        responseReader.addConnection(this);
+                    } else {
+                        start();
+                    }
                     return;
                 }
             } catch (Throwable t) {
@@ -685,11 +934,7 @@ public class Client {
             long curTime = Time.now();
             if ( curTime - lastActivity.get() >= pingInterval) {
                 lastActivity.set(curTime);
-                synchronized (out) {
-                    out.writeInt(pingRequest.size());
-                    pingRequest.writeTo(out);
-                    out.flush();
-                }
+                writeRequest(pingRequest.duplicate());
             }
         }
 
@@ -723,74 +968,98 @@ public class Client {
          * threads.
          * @param call - the rpc request
          */
-        public void sendRpcRequest(final Call call)
-                throws InterruptedException, IOException {
+        public void sendRpcRequest(final Call call) throws IOException {
             if (shouldCloseConnection.get()) {
                 return;
             }
 
-            // Serialize the call to be sent. This is done from the actual
-            // caller thread, rather than the SEND_PARAMS_EXECUTOR thread,
-            // so that if the serialization throws an error, it is reported
-            // properly. This also parallelizes the serialization.
+            // Serialize and frame the call in the caller thread, so that a
+            // serialization error is reported to the caller and does not leave
+            // anything on the wire.
             //
             // Format of a call on the wire:
             // 0) Length of rest below (1 + 2)
             // 1) RpcRequestHeader  - is serialized Delimited hence contains length
             // 2) RpcRequest
-            //
-            // Items '1' and '2' are prepared here.
             final DataOutputBuffer d = new DataOutputBuffer();
+            d.writeInt(0); // length, filled in below
             RpcRequestHeaderProto header = ProtoUtil.makeRpcRequestHeader(
                     call.rpcKind, OperationProto.RPC_FINAL_PACKET, call.id, call.retry,
-                    clientId);
+                    clientId, call.getRemainingTime());
             header.writeDelimitedTo(d);
             call.rpcRequest.write(d);
+            final int totalLength = d.getLength();
+            d.writeInt(totalLength - 4, 0);
 
-            synchronized (sendRpcRequestLock) {
-                Future<?> senderFuture = SEND_PARAMS_EXECUTOR.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            synchronized (Connection.this.out) {
-                                if (shouldCloseConnection.get()) {
-                                    return;
-                                }
-
-                                if (LOG.isDebugEnabled())
-                                    LOG.debug(getName() + " sending #" + call.id);
-
-                                byte[] data = d.getData();
-                                int totalLength = d.getLength();
-                                out.writeInt(totalLength); // Total Length
-                                out.write(data, 0, totalLength);// RpcRequestHeader + RpcRequest
-                                out.flush();
-                            }
-                        } catch (IOException e) {
-                            // exception at this point would leave the connection in an
-                            // unrecoverable state (eg half a call left on the wire).
-                            // So, close the connection, killing any outstanding calls
-                            markClosed(e);
-                        } finally {
-                            //the buffer is just an in-memory buffer, but it is still polite to
-                            // close early
-                            IOUtils.closeStream(d);
-                        }
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + " sending #" + call.id);
+            writeRequest(ByteBuffer.wrap(d.getData(), 0, totalLength));
+        }
+
+        /**
+         * Queue a framed request for writing.  If no other thread is writing to
+         * the socket, this thread writes it, along with the requests that other
+         * threads queue meanwhile, so concurrent callers share write(2) calls
+         * and flushes.  Otherwise the writing thread picks it up.
+         */
+        private void writeRequest(ByteBuffer request) {
+            pendingRequests.add(request);
+            // check again after flushing, in case a request was queued while
+            // this thread was leaving the flushing state
+            while (!pendingRequests.isEmpty()
+                    && flushing.compareAndSet(false, true)) {
+                // An interrupt closes the socket channel under a blocked write,
+                // so the writer's interrupt status is put aside while writing.
+                final boolean interrupted = Thread.interrupted();
+                try {
+                    flushRequests();
+                } catch (IOException e) {
+                    // exception at this point would leave the connection in an
+                    // unrecoverable state (eg half a call left on the wire).
+                    // So, close the connection, killing any outstanding calls
+                    markClosed(e);
+                } finally {
+                    flushing.set(false);
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
                     }
-                });
+                }
+            }
+        }
 
+        /* Write the queued requests in batches until the queue is empty.
+         * Called by the thread in the flushing state only.
+         */
+        private void flushRequests() throws IOException {
+            while (true) {
+                if (shouldCloseConnection.get()) {
+                    pendingRequests.clear();
+                    return;
+                }
+                int n = 0;
+                ByteBuffer request;
+                while (n < writeBatch.length
+                        && (request = pendingRequests.poll()) != null) {
+                    writeBatch[n++] = request;
+                }
+                if (n == 0) {
+                    return;
+                }
                 try {
-                    senderFuture.get();
-                } catch (ExecutionException e) {
-                    Throwable cause = e.getCause();
-
-                    // cause should only be a RuntimeException as the Runnable above
-                    // catches IOException
-                    if (cause instanceof RuntimeException) {
-                        throw (RuntimeException) cause;
+                    if (channelOut != null) {
+                        channelOut.writeFully(writeBatch, 0, n);
                     } else {
-                        throw new RuntimeException("unexpected checked exception", cause);
+                        synchronized (out) {
+                            for (int i = 0; i < n; i++) {
+                                out.write(writeBatch[i].array(),
+                                        writeBatch[i].arrayOffset() + writeBatch[i].position(),
+                                        writeBatch[i].remaining());
+                            }
+                            out.flush();
+                        }
                     }
+                } finally {
+                    Arrays.fill(writeBatch, 0, n, null);
                 }
             }
         }
@@ -806,66 +1075,140 @@ public class Client {
 
             try {
                 int totalLen = in.readInt();
-                RpcResponseHeaderProto header =
-                        RpcResponseHeaderProto.parseDelimitedFrom(in);
-                checkResponse(header);
-
-                int headerLen = header.getSerializedSize();
-                headerLen += CodedOutputStream.computeRawVarint32Size(headerLen);
-
-                int callId = header.getCallId();
-                if (LOG.isDebugEnabled())
-                    LOG.debug(getName() + " got value #" + callId);
-
-                Call call = calls.get(callId);
-                RpcStatusProto status = header.getStatus();
-                if (status == RpcStatusProto.SUCCESS) {
-                    Writable value = ReflectionUtils.newInstance(valueClass);
-                    value.readFields(in);                 // read value
-                    calls.remove(callId);
-                    call.setRpcResponse(value);
+                if (totalLen < 0) {
+                    throw new RpcClientException("Invalid response length "
+                            + totalLen + " from " + server);
+                }
+                // read the whole response, so that the value can be decoded
+                // from this buffer without copying it again
+                byte[] data = new byte[totalLen];
+                in.readFully(data);
+                DataInputBuffer dis = new DataInputBuffer();
+                dis.reset(data, totalLen);
+                processRpcResponse(totalLen, dis);
+            } catch (IOException e) {
+                markClosed(e);
+            }
+        }
 
-                    // verify that length was correct
-                    // only for ProtobufEngine where len can be verified easily
-                    if (call.getRpcResponse() instanceof ProtobufRpcEngine.RpcWrapper) {
-                        ProtobufRpcEngine.RpcWrapper resWrapper =
-                                (ProtobufRpcEngine.RpcWrapper) call.getRpcResponse();
-                        if (totalLen != headerLen + resWrapper.getLength()) {
-                            throw new RpcClientException(
-                                    "RPC response length mismatch on rpc success");
+        /* Read the responses the socket has received without blocking.
+         * Called by the response reader only.
+         */
+        private void readRpcResponses() {
+            try {
+                ReadableByteChannel channel = socket.getChannel();
+                while (!shouldCloseConnection.get()) {
+                    if (response == null) {
+                        channelRead(channel, responseLength);
+                        if (responseLength.hasRemaining()) {
+                            return;
                         }
+                        responseLength.flip();
+                        int totalLen = responseLength.getInt();
+                        responseLength.clear();
+                        if (totalLen < 0) {
+                            throw new RpcClientException("Invalid response length "
+                                    + totalLen + " from " + server);
+                        }
+                        response = ByteBuffer.allocate(totalLen);
                     }
-                } else { // Rpc Request failed
-                    // Verify that length was correct
-                    if (totalLen != headerLen) {
-                        throw new RpcClientException(
-                                "RPC response length mismatch on rpc error");
+                    if (response.hasRemaining()
+                            && channelRead(channel, response) == 0) {
+                        return;
+                    }
+                    if (response.hasRemaining()) {
+                        continue;
                     }
+                    ByteBuffer data = response;
+                    response = null;
+                    DataInputBuffer dis = new DataInputBuffer();
+                    dis.reset(data.array(), data.limit());
+                    processRpcResponse(data.limit(), dis);
+                }
+            } catch (IOException e) {
+                markClosed(e);
+            }
+        }
 
-                    final String exceptionClassName = header.hasExceptionClassName() ?
-                            header.getExceptionClassName() :
-                            "ServerDidNotSetExceptionClassName";
-                    final String errorMsg = header.hasErrorMsg() ?
-                            header.getErrorMsg() : "ServerDidNotSetErrorMsg" ;
-                    final RpcErrorCodeProto erCode =
-                            (header.hasErrorDetail() ? header.getErrorDetail() : null);
-                    if (erCode == null) {
-                        LOG.warn("Detailed error code not set by server on rpc error");
+        private int channelRead(ReadableByteChannel channel, ByteBuffer buffer)
+                throws IOException {
+            int count = (buffer.remaining() <= Server.NIO_BUFFER_LIMIT) ?
+                    channel.read(buffer) : Server.channelIO(channel, null, buffer);
+            if (count < 0) {
+                throw new EOFException("End of stream from " + server);
+            } else if (count > 0) {
+                touch();
+            }
+            return count;
+        }
+
+        /* Decode a response of totalLen bytes, without its length, and
+         * complete its call.  The value may keep referring to the buffer.
+         */
+        private void processRpcResponse(int totalLen, DataInputBuffer in)
+                throws IOException {
+            RpcResponseHeaderProto header =
+                    RpcResponseHeaderProto.parseDelimitedFrom(in);
+            checkResponse(header);
+
+            int headerLen = header.getSerializedSize();
+            headerLen += CodedOutputStream.computeRawVarint32Size(headerLen);
+
+            int callId = header.getCallId();
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + " got value #" + callId);
+
+            RpcStatusProto status = header.getStatus();
+            if (status == RpcStatusProto.SUCCESS) {
+                // the value is read even if the call was cancelled in the
+                // meantime, to keep the stream in sync
+                Writable value = ReflectionUtils.newInstance(valueClass);
+                value.readFields(in);                 // read value
+                Call call = calls.remove(callId);
+                if (call != null) {
+                    call.setRpcResponse(value);
+                }
+
+                // verify that length was correct
+                // only for ProtobufEngine where len can be verified easily
+                if (value instanceof ProtobufRpcEngine.RpcWrapper) {
+                    ProtobufRpcEngine.RpcWrapper resWrapper =
+                            (ProtobufRpcEngine.RpcWrapper) value;
+                    if (totalLen != headerLen + resWrapper.getLength()) {
+                        throw new RpcClientException(
+                                "RPC response length mismatch on rpc success");
                     }
-                    RemoteException re =
-                            ( (erCode == null) ?
-                                    new RemoteException(exceptionClassName, errorMsg) :
-                                    new RemoteException(exceptionClassName, errorMsg, erCode));
-                    if (status == RpcStatusProto.ERROR) {
-                        calls.remove(callId);
+                }
+            } else { // Rpc Request failed
+                // Verify that length was correct
+                if (totalLen != headerLen) {
+                    throw new RpcClientException(
+                            "RPC response length mismatch on rpc error");
+                }
+
+                final String exceptionClassName = header.hasExceptionClassName() ?
+                        header.getExceptionClassName() :
+                        "ServerDidNotSetExceptionClassName";
+                final String errorMsg = header.hasErrorMsg() ?
+                        header.getErrorMsg() : "ServerDidNotSetErrorMsg" ;
+                final RpcErrorCodeProto erCode =
+                        (header.hasErrorDetail() ? header.getErrorDetail() : null);
+                if (erCode == null) {
+                    LOG.warn("Detailed error code not set by server on rpc error");
+                }
+                RemoteException re =
+                        ( (erCode == null) ?
+                                new RemoteException(exceptionClassName, errorMsg) :
+                                new RemoteException(exceptionClassName, errorMsg, erCode));
+                if (status == RpcStatusProto.ERROR) {
+                    Call call = calls.remove(callId);
+                    if (call != null) {
                         call.setException(re);
-                    } else if (status == RpcStatusProto.FATAL) {
-                        // Close the connection
-                        markClosed(re);
                     }
+                } else if (status == RpcStatusProto.FATAL) {
+                    // Close the connection
+                    markClosed(re);
                 }
-            } catch (IOException e) {
-                markClosed(e);
             }
         }
 
@@ -873,6 +1216,51 @@ public class Client {
             if (shouldCloseConnection.compareAndSet(false, true)) {
                 closeException = e;
                 notifyAll();
+                if (responseReader != null) {
+                    responseReader.removeConnection(this);
+                }
+            }
+        }
+
+        /* Called periodically by the response reader in place of the timeouts
+         * of waitForWork() and PingInputStream: close the connection if it is
+         * idle, timed out or the client stopped, or else have a ping sent if
+         * due.
+         */
+        private void checkActivity(long now) {
+            if (shouldCloseConnection.get()) {
+                return;
+            }
+            final long idle = now - lastActivity.get();
+            if (calls.isEmpty()) {
+                if (!running.get() || idle >= maxIdleTime) {
+                    markClosed(null);
+                }
+            } else if (!running.get()) {
+                markClosed((IOException)new IOException().initCause(
+                        new InterruptedException()));
+            } else if (rpcTimeout > 0) {
+                if (idle >= rpcTimeout) {
+                    markClosed(new SocketTimeoutException(rpcTimeout
+                            + " millis timeout while waiting for response from "
+                            + server));
+                }
+            } else if (doPing && idle >= pingInterval
+                    && pingPending.compareAndSet(false, true)) {
+                // the write may block on a full socket, which would hold up
+                // the other connections of the response reader
+                PING_SENDER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sendPing();
+                        } catch (IOException e) {
+                            markClosed(e);
+                        } finally {
+                            pingPending.set(false);
+                        }
+                    }
+                });
             }
         }
 
@@ -886,8 +1274,16 @@ public class Client {
             // release the resources
             // first thing to do;take the connection out of the connection list
             synchronized (connections) {
-                if (connections.get(remoteId) == this) {
-                    connections.remove(remoteId);
+                Connection[] pool = connections.get(remoteId);
+                if (pool != null && pool[slot] == this) {
+                    pool[slot] = null;
+                    boolean empty = true;
+                    for (Connection c : pool) {
+                        empty &= c == null;
+                    }
+                    if (empty) {
+                        connections.remove(remoteId);
+                    }
                 }
             }
 
@@ -921,15 +1317,150 @@ public class Client {
 
         /* Cleanup all calls and mark them as done */
         private void cleanupCalls() {
-            Iterator<Entry<Integer, Call>> itor = calls.entrySet().iterator() ;
-            while (itor.hasNext()) {
-                Call c = itor.next().getValue();
-                itor.remove();
+            for (Call c : calls.removeAll()) {
                 c.setException(closeException); // local exception
             }
         }
     }
 
+    /** Thread that reads the responses of many connections through a selector,
+     * so that the number of client threads does not grow with the number of
+     * servers.  Connections are registered and closed by this thread only. */
+    private class ResponseReader extends Thread {
+        private static final long MAX_CHECK_INTERVAL = 1000;
+
+        private final Selector selector;
+        private final Queue<Connection> pendingConnections =
+                new ConcurrentLinkedQueue<Connection>();
+        private final Queue<Connection> closedConnections =
+                new ConcurrentLinkedQueue<Connection>();
+        private final Set<Connection> registered = new HashSet<Connection>();
+        // how often connections are checked for timeouts and pings
+        private volatile long checkInterval = MAX_CHECK_INTERVAL;
+
+        ResponseReader(int instanceNumber) throws IOException {
+            this.selector = Selector.open();
+            this.setName("IPC Client (" + socketFactory.hashCode()
+                    + ") response reader #" + instanceNumber);
+            this.setDaemon(true);
+        }
+
+        /** Start reading responses for a connection. */
+        void addConnection(Connection c) {
+            for (int timeout : new int[] { c.maxIdleTime, c.rpcTimeout,
+                    c.doPing ? c.pingInterval : 0 }) {
+                if (timeout > 0 && timeout / 4 < checkInterval) {
+                    checkInterval = Math.max(10, timeout / 4);
+                }
+            }
+            pendingConnections.add(c);
+            selector.wakeup();
+        }
+
+        /** Close a connection that has been marked closed. */
+        void removeConnection(Connection c) {
+            closedConnections.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + ": starting");
+
+            long lastCheck = Time.now();
+            try {
+                while (running.get() || !registered.isEmpty()
+                        || !pendingConnections.isEmpty()) {
+                    selector.select(checkInterval);
+                    doPendingWork();
+
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            doRead((Connection) key.attachment());
+                        }
+                    }
+
+                    long now = Time.now();
+                    if (now - lastCheck >= checkInterval || !running.get()) {
+                        lastCheck = now;
+                        for (Connection c : registered) {
+                            c.checkActivity(now);
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                LOG.warn("Unexpected error reading responses in " + getName(), t);
+                for (Connection c : registered) {
+                    c.markClosed(new IOException("Error reading responses", t));
+                }
+                doPendingWork();
+            } finally {
+                IOUtils.closeStream(selector);
+            }
+
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + ": stopped");
+        }
+
+        private void doPendingWork() {
+            Connection c;
+            while ((c = pendingConnections.poll()) != null) {
+                if (c.shouldCloseConnection.get()) {
+                    c.close();
+                } else {
+                    SocketChannel channel = c.socket.getChannel();
+                    try {
+                        channel.register(selector, SelectionKey.OP_READ, c);
+                        registered.add(c);
+                    } catch (IOException e) {
+                        c.markClosed(e);
+                        c.close();
+                    }
+                }
+            }
+            while ((c = closedConnections.poll()) != null) {
+                if (registered.remove(c)) {
+                    SelectionKey key = c.socket.getChannel().keyFor(selector);
+                    if (key != null) {
+                        key.cancel();
+                    }
+                    c.close();
+                }
+            }
+        }
+
+        private void doRead(Connection c) {
+            try {
+                c.readRpcResponses();
+            } catch (Throwable t) {
+                // as in Connection.run(), make sure no caller is left hanging
+                LOG.warn("Unexpected error reading responses on connection " + c, t);
+                c.markClosed(new IOException("Error reading responses", t));
+            }
+        }
+    }
+
+    /** Pick the response reader of a new connection, starting the readers
+     * on first use. */
+    private synchronized ResponseReader getResponseReader() throws IOException {
+        if (responseReaders == null) {
+            ResponseReader[] readers = new ResponseReader[selectorThreads];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new ResponseReader(i + 1);
+            }
+            for (ResponseReader reader : readers) {
+                reader.start();
+            }
+            responseReaders = readers;
+        }
+        nextResponseReader = (nextResponseReader + 1) % responseReaders.length;
+        return responseReaders[nextResponseReader];
+    }
+
     /** Construct an IPC client whose values are of the given {@link Writable}
      * class. */
     public Client(Class<? extends Writable> valueClass, Option conf,
@@ -942,6 +1473,9 @@ public class Client {
         this.fallbackAllowed = conf.getBoolean(CommonConfigurationKeys.IPC_CLIENT_FALLBACK_TO_SIMPLE_AUTH_ALLOWED_KEY,
                 CommonConfigurationKeys.IPC_CLIENT_FALLBACK_TO_SIMPLE_AUTH_ALLOWED_DEFAULT);
         this.clientId = ClientId.getClientId();
+        this.selectorThreads = conf.getInt(
+                CommonConfigurationKeys.IPC_CLIENT_SELECTOR_THREADS_KEY,
+                CommonConfigurationKeys.IPC_CLIENT_SELECTOR_THREADS_DEFAULT);
     }
 
     /**
@@ -974,8 +1508,19 @@ public class Client {
 
         // wake up all connections
         synchronized (connections) {
-            for (Connection conn : connections.values()) {
-                conn.interrupt();
+            for (Connection[] pool : connections.values()) {
+                for (Connection conn : pool) {
+                    if (conn != null) {
+                        conn.interrupt();
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            if (responseReaders != null) {
+                for (ResponseReader reader : responseReaders) {
+                    reader.selector.wakeup();
+                }
             }
         }
 
@@ -1113,23 +1658,53 @@ public class Client {
      */
     public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
                          ConnectionId remoteId, int serviceClass) throws IOException {
+        return call(rpcKind, rpcRequest, remoteId, serviceClass,
+                remoteId.getCallTimeout());
+    }
+
+    /**
+     * Make a call, passing <code>rpcRequest</code>, to the IPC server defined by
+     * <code>remoteId</code>, returning the rpc respond.  If the response does
+     * not arrive within <code>callTimeout</code> msecs, the call is abandoned
+     * and a {@link SocketTimeoutException} is thrown; the connection stays
+     * open.  The timeout is sent to the server too, which does not serve the
+     * call once it has expired.
+     *
+     * @param rpcKind
+     * @param rpcRequest -  contains serialized method and method parameters
+     * @param remoteId - the target rpc server
+     * @param serviceClass - service class for RPC
+     * @param callTimeout - msecs to wait for the response; 0 means no timeout
+     * @returns the rpc response
+     * Throws exceptions if there are network problems or if the remote code
+     * threw an exception.
+     */
+    public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
+                         ConnectionId remoteId, int serviceClass, int callTimeout)
+            throws IOException {
         final Call call = createCall(rpcKind, rpcRequest);
+        call.setTimeout(callTimeout);
         Connection connection = getConnection(remoteId, call, serviceClass);
-        try {
-            connection.sendRpcRequest(call);                 // send the rpc request
-        } catch (RejectedExecutionException e) {
-            throw new IOException("connection has been closed", e);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            LOG.warn("interrupted waiting to send rpc request to server", e);
-            throw new IOException(e);
-        }
+        connection.sendRpcRequest(call);                 // send the rpc request
 
         boolean interrupted = false;
         synchronized (call) {
             while (!call.done) {
                 try {
-                    call.wait();                           // wait for the result
+                    if (call.timeout <= 0) {
+                        call.wait();                       // wait for the result
+                    } else {
+                        long remaining = call.deadline - Time.monotonicNow();
+                        if (remaining <= 0) {
+                            if (connection.removeCall(call)) {
+                                call.setException(call.timeoutException());
+                            } else {
+                                call.wait(); // the response is being delivered
+                            }
+                        } else {
+                            call.wait(remaining);
+                        }
+                    }
                 } catch (InterruptedException ie) {
                     // save the fact that we were interrupted
                     interrupted = true;
@@ -1159,6 +1734,64 @@ public class Client {
         }
     }
 
+    /**
+     * Same as {@link #callAsync(RPC.RpcKind, Writable, ConnectionId, int)}
+     * for the default service class.
+     */
+    public CompletableFuture<Writable> callAsync(RPC.RpcKind rpcKind,
+                                                Writable rpcRequest, ConnectionId remoteId) {
+        return callAsync(rpcKind, rpcRequest, remoteId,
+                RPC.RPC_SERVICE_CLASS_DEFAULT);
+    }
+
+    /**
+     * Make a call, passing <code>rpcRequest</code>, to the IPC server defined by
+     * <code>remoteId</code>, without waiting for the response.  The returned
+     * future is completed by the connection's receiver thread with the rpc
+     * response, or with the exception {@link #call(RPC.RpcKind, Writable,
+     * ConnectionId, int)} would have thrown.  Cancelling the future abandons
+     * the call; a late response is discarded.
+     *
+     * @param rpcKind
+     * @param rpcRequest -  contains serialized method and method parameters
+     * @param remoteId - the target rpc server
+     * @param serviceClass - service class for RPC
+     * @return the future of the rpc response
+     */
+    public CompletableFuture<Writable> callAsync(RPC.RpcKind rpcKind,
+                                                Writable rpcRequest, ConnectionId remoteId, int serviceClass) {
+        return callAsync(rpcKind, rpcRequest, remoteId, serviceClass,
+                remoteId.getCallTimeout());
+    }
+
+    /**
+     * Same as {@link #callAsync(RPC.RpcKind, Writable, ConnectionId, int)},
+     * but the future fails with a {@link SocketTimeoutException} if the
+     * response does not arrive within <code>callTimeout</code> msecs.
+     *
+     * @param callTimeout - msecs to wait for the response; 0 means no timeout
+     * @see #call(RPC.RpcKind, Writable, ConnectionId, int, int)
+     */
+    public CompletableFuture<Writable> callAsync(RPC.RpcKind rpcKind,
+                                                Writable rpcRequest, ConnectionId remoteId, int serviceClass,
+                                                int callTimeout) {
+        final AsyncCall call = new AsyncCall(rpcKind, rpcRequest, remoteId);
+        call.setTimeout(callTimeout);
+        try {
+            Connection connection = getConnection(remoteId, call, serviceClass);
+            call.connection = connection;
+            if (call.future.isCancelled()) {
+                connection.removeCall(call);
+            } else if (call.timeout > 0) {
+                call.scheduleTimeout();
+            }
+            connection.sendRpcRequest(call);                 // send the rpc request
+        } catch (IOException e) {
+            call.future.completeExceptionally(e);
+        }
+        return call.future;
+    }
+
     // for unit testing only
     Set<ConnectionId> getConnectionIds() {
         synchronized (connections) {
@@ -1167,7 +1800,10 @@ public class Client {
     }
 
     /** Get a connection from the pool, or create a new one and add it to the
-     * pool.  Connections to a given ConnectionId are reused. */
+     * pool.  Connections to a given ConnectionId are reused: the call goes to
+     * the connection with the fewest outstanding calls, and a new connection
+     * is only opened while the pool is not full and every open connection is
+     * busy. */
     private Connection getConnection(ConnectionId remoteId,
                                      Call call, int serviceClass) throws IOException {
         if (!running.get()) {
@@ -1181,10 +1817,26 @@ public class Client {
      */
         do {
             synchronized (connections) {
-                connection = connections.get(remoteId);
-                if (connection == null) {
-                    connection = new Connection(remoteId, serviceClass);
-                    connections.put(remoteId, connection);
+                Connection[] pool = connections.get(remoteId);
+                if (pool == null) {
+                    pool = new Connection[remoteId.getConnectionsPerServer()];
+                    connections.put(remoteId, pool);
+                }
+                connection = null;
+                int free = -1;
+                for (int i = 0; i < pool.length; i++) {
+                    if (pool[i] == null) {
+                        if (free < 0) {
+                            free = i;
+                        }
+                    } else if (connection == null
+                            || pool[i].calls.size() < connection.calls.size()) {
+                        connection = pool[i];
+                    }
+                }
+                if (free >= 0 && (connection == null || !connection.calls.isEmpty())) {
+                    connection = new Connection(remoteId, free, serviceClass);
+                    pool[free] = connection;
                 }
             }
         } while (!connection.addCall(call));
@@ -1214,12 +1866,18 @@ public class Client {
         private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
         private final boolean doPing; //do we need to send ping message
         private final int pingInterval; // how often sends ping to the server in msecs
+        private final int connectionsPerServer; // max. no. of sockets to the server
+        // msecs a call waits for its response by default; 0 means no timeout.
+        // This does not change how connections behave, so it is not part of
+        // the identity of a ConnectionId.
+        private final int callTimeout;
         private String saslQop; // here for testing
 
         ConnectionId(InetSocketAddress address, Class<?> protocol,
                      int rpcTimeout, int maxIdleTime,
                      RetryPolicy connectionRetryPolicy, int maxRetriesOnSocketTimeouts,
-                     boolean tcpNoDelay, boolean doPing, int pingInterval) {
+                     boolean tcpNoDelay, boolean doPing, int pingInterval,
+                     int connectionsPerServer, int callTimeout) {
             this.protocol = protocol;
             this.address = address;
             this.rpcTimeout = rpcTimeout;
@@ -1229,6 +1887,8 @@ public class Client {
             this.tcpNoDelay = tcpNoDelay;
             this.doPing = doPing;
             this.pingInterval = pingInterval;
+            this.connectionsPerServer = connectionsPerServer;
+            this.callTimeout = callTimeout;
         }
 
         InetSocketAddress getAddress() {
@@ -1264,6 +1924,14 @@ public class Client {
             return pingInterval;
         }
 
+        int getConnectionsPerServer() {
+            return connectionsPerServer;
+        }
+
+        int getCallTimeout() {
+            return callTimeout;
+        }
+
         static ConnectionId getConnectionId(InetSocketAddress addr,
                                             Class<?> protocol, int rpcTimeout,
                                             Option conf) throws IOException {
@@ -1303,7 +1971,12 @@ public class Client {
                     conf.getBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_TCPNODELAY_KEY,
                             CommonConfigurationKeysPublic.IPC_CLIENT_TCPNODELAY_DEFAULT),
                     doPing,
-                    (doPing ? Client.getPingInterval(conf) : 0));
+                    (doPing ? Client.getPingInterval(conf) : 0),
+                    Math.max(1, conf.getInt(
+                            CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY,
+                            CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_SERVER_DEFAULT)),
+                    conf.getInt(CommonConfigurationKeys.IPC_CLIENT_CALL_TIMEOUT_KEY,
+                            CommonConfigurationKeys.IPC_CLIENT_CALL_TIMEOUT_DEFAULT));
         }
 
         static boolean isEqual(Object a, Object b) {
@@ -1324,7 +1997,8 @@ public class Client {
                         && this.pingInterval == that.pingInterval
                         && isEqual(this.protocol, that.protocol)
                         && this.rpcTimeout == that.rpcTimeout
-                        && this.tcpNoDelay == that.tcpNoDelay;
+                        && this.tcpNoDelay == that.tcpNoDelay
+                        && this.connectionsPerServer == that.connectionsPerServer;
             }
             return false;
         }
@@ -1339,6 +2013,7 @@ public class Client {
             result = PRIME * result + ((protocol == null) ? 0 : protocol.hashCode());
             result = PRIME * result + rpcTimeout;
             result = PRIME * result + (tcpNoDelay ? 1231 : 1237);
+            result = PRIME * result + connectionsPerServer;
             return result;
         }
 
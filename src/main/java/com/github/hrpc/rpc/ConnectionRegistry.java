@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The open connections of a server, in slots indexed by number.
+ *
+ * A connection takes a free slot when it is added, and is removed by the
+ * index of its slot, which is then free again, so both take constant time
+ * and no lock.  The slots are allocated in segments as needed and never
+ * move.  The count of connections is kept apart, so reading it is free.
+ * Only the rare operations over all the connections scan the slots.
+ */
+class ConnectionRegistry<C> {
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int MAX_SEGMENTS = 1 << 12;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<C>> segments =
+            new AtomicReferenceArray<AtomicReferenceArray<C>>(MAX_SEGMENTS);
+    private final Queue<Integer> freeSlots = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicInteger slotsUsed = new AtomicInteger();  // ever used
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Add a connection.
+     * @return the index of its slot, to remove it by
+     * @throws IllegalStateException if there are too many connections
+     */
+    int add(C connection) {
+        Integer free = freeSlots.poll();
+        final int index;
+        if (free != null) {
+            index = free;
+        } else {
+            index = slotsUsed.getAndIncrement();
+            if (index >= MAX_SEGMENTS * SEGMENT_SIZE) {
+                slotsUsed.decrementAndGet();
+                throw new IllegalStateException("Too many connections");
+            }
+        }
+        getSegment(index >>> SEGMENT_SHIFT).set(index & (SEGMENT_SIZE - 1), connection);
+        size.incrementAndGet();
+        return index;
+    }
+
+    /**
+     * Remove a connection.
+     * @param index the index add() returned for it
+     * @return true if it was there, false if it was removed already
+     */
+    boolean remove(int index, C connection) {
+        if (index < 0 || index >= slotsUsed.get()) {
+            return false;
+        }
+        final AtomicReferenceArray<C> segment = segments.get(index >>> SEGMENT_SHIFT);
+        if (segment == null
+                || !segment.compareAndSet(index & (SEGMENT_SIZE - 1), connection, null)) {
+            return false;
+        }
+        size.decrementAndGet();
+        freeSlots.add(index);
+        return true;
+    }
+
+    /** @return the number of connections */
+    int size() {
+        return size.get();
+    }
+
+    /** @return the connections at the time of the call */
+    List<C> snapshot() {
+        final List<C> connections = new ArrayList<C>(size());
+        final int used = slotsUsed.get();
+        for (int s = 0; s << SEGMENT_SHIFT < used; s++) {
+            final AtomicReferenceArray<C> segment = segments.get(s);
+            if (segment == null) {
+                continue;
+            }
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                final C connection = segment.get(i);
+                if (connection != null) {
+                    connections.add(connection);
+                }
+            }
+        }
+        return connections;
+    }
+
+    private AtomicReferenceArray<C> getSegment(int s) {
+        AtomicReferenceArray<C> segment = segments.get(s);
+        if (segment == null) {
+            segments.compareAndSet(s, null, new AtomicReferenceArray<C>(SEGMENT_SIZE));
+            segment = segments.get(s);
+        }
+        return segment;
+    }
+}
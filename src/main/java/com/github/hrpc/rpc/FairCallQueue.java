@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+import com.github.hrpc.util.Time;
+
+/**
+ * A call queue that shares the handlers fairly between the callers.
+ *
+ * The calls are split over several priority levels, each a FIFO queue with
+ * its share of the capacity.  A call's level depends on how many of the
+ * recent calls came from the same caller: a caller with less than 1/8th of
+ * the calls gets the top level, one with over 1/2 the bottom level, and so
+ * on with 4 levels.  The counts of calls are halved every few seconds, so
+ * the levels follow the recent load.  Callers are told apart by their client
+ * id, or by their address if so configured.
+ *
+ * The handlers take calls from the levels in weighted round robin: 8 calls
+ * from the top level, then 4 from the next, and so on, skipping the empty
+ * levels.  A caller flooding the server thus only delays its own calls,
+ * while no level is starved.  When the level of a call is full, the call
+ * goes to a lower level with space; when all are, the reader waits.
+ */
+public class FairCallQueue implements CallQueue {
+    private final ArrayDeque<Server.Call>[] levels;
+    private final int levelCapacity;
+    private final int[] weights;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition[] notFull;
+    private int size;
+    private int currentLevel;
+    private int credits;
+
+    private final Usage usage;
+    private final boolean identifyByAddress;
+
+    @SuppressWarnings("unchecked")
+    public FairCallQueue(int capacity, Option conf) {
+        final int numLevels = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY,
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_DEFAULT);
+        if (numLevels < 1) {
+            throw new IllegalArgumentException("Invalid number of levels " + numLevels);
+        }
+        this.levels = (ArrayDeque<Server.Call>[]) new ArrayDeque<?>[numLevels];
+        this.notFull = new Condition[numLevels];
+        this.weights = new int[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            levels[i] = new ArrayDeque<Server.Call>();
+            notFull[i] = lock.newCondition();
+            weights[i] = 1 << Math.min(numLevels - 1 - i, 30);
+        }
+        this.levelCapacity = Math.max(1, capacity / numLevels);
+        this.credits = weights[0];
+
+        this.usage = new Usage(numLevels,
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_DEFAULT),
+                conf.getDouble(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_DECAY_FACTOR_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_DECAY_FACTOR_DEFAULT));
+        final String identity = conf.get(
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_IDENTITY_KEY,
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_IDENTITY_DEFAULT);
+        if ("ip".equalsIgnoreCase(identity)) {
+            this.identifyByAddress = true;
+        } else if ("clientid".equalsIgnoreCase(identity)) {
+            this.identifyByAddress = false;
+        } else {
+            throw new IllegalArgumentException("Invalid caller identity " + identity);
+        }
+    }
+
+    /** @return the caller of a call, as far as fairness is concerned */
+    private Object getIdentity(Server.Call call) {
+        final byte[] clientId = call.getClientId();
+        if (identifyByAddress || clientId == null || clientId.length == 0) {
+            return call.getRemoteAddress();
+        }
+        return ByteBuffer.wrap(clientId);
+    }
+
+    @Override
+    public void put(Server.Call call) throws InterruptedException {
+        final int level = usage.getPriorityLevel(getIdentity(call));
+        lock.lockInterruptibly();
+        try {
+            while (!add(call, level)) {
+                notFull[level].await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Server.Call call) {
+        final int level = usage.getPriorityLevel(getIdentity(call));
+        lock.lock();
+        try {
+            return add(call, level);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Add a call at the given level or below; the lock must be held. */
+    private boolean add(Server.Call call, int level) {
+        for (int i = level; i < levels.length; i++) {
+            if (levels[i].size() < levelCapacity) {
+                levels[i].add(call);
+                size++;
+                notEmpty.signal();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Server.Call take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            while (levels[currentLevel].isEmpty()) {
+                nextLevel();
+            }
+            final int level = currentLevel;
+            final Server.Call call = levels[level].poll();
+            size--;
+            if (--credits == 0) {
+                nextLevel();
+            }
+            // the space is open to the calls of this level and the ones above
+            for (int i = 0; i <= level; i++) {
+                notFull[i].signal();
+            }
+            return call;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void nextLevel() {
+        currentLevel = (currentLevel + 1) % levels.length;
+        credits = weights[currentLevel];
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The recent number of calls of each caller, from which the priority
+     * level of its calls is derived.  The counts decay by a factor every
+     * period.
+     */
+    static class Usage {
+        private final ConcurrentHashMap<Object, AtomicLong> counts =
+                new ConcurrentHashMap<Object, AtomicLong>();
+        private final AtomicLong total = new AtomicLong();
+        private final double[] thresholds;
+        private final long period;
+        private final double factor;
+        private final AtomicLong nextDecay;
+
+        Usage(int numLevels, long period, double factor) {
+            // a share of the calls of 1/2 or more gets the bottom level,
+            // 1/4 or more the one above, and so on
+            this.thresholds = new double[numLevels - 1];
+            for (int i = 0; i < thresholds.length; i++) {
+                thresholds[i] = Math.pow(0.5, numLevels - 1 - i);
+            }
+            this.period = period;
+            this.factor = factor;
+            this.nextDecay = new AtomicLong(Time.monotonicNow() + period);
+        }
+
+        /** Count a call of the caller, and return the level for the call. */
+        int getPriorityLevel(Object identity) {
+            final long now = Time.monotonicNow();
+            final long decayTime = nextDecay.get();
+            if (now >= decayTime && nextDecay.compareAndSet(decayTime, now + period)) {
+                decay();
+            }
+
+            AtomicLong count = counts.get(identity);
+            if (count == null) {
+                count = new AtomicLong();
+                final AtomicLong existing = counts.putIfAbsent(identity, count);
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            final double share =
+                    (double) count.incrementAndGet() / total.incrementAndGet();
+            int level = 0;
+            while (level < thresholds.length && share >= thresholds[level]) {
+                level++;
+            }
+            return level;
+        }
+
+        /** Scale down all the counts.  Concurrent calls may be miscounted a
+         *  little, which does not matter. */
+        void decay() {
+            long newTotal = 0;
+            for (Iterator<AtomicLong> it = counts.values().iterator(); it.hasNext();) {
+                final AtomicLong count = it.next();
+                final long decayed = (long) (count.get() * factor);
+                count.set(decayed);
+                if (decayed == 0) {
+                    it.remove();
+                }
+                newTotal += decayed;
+            }
+            total.set(newTotal);
+        }
+    }
+}
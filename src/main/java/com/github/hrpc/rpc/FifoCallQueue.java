@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.github.hrpc.util.Option;
+
+/**
+ * A call queue that serves calls in the order they arrive.
+ */
+public class FifoCallQueue implements CallQueue {
+    private final BlockingQueue<Server.Call> queue;
+
+    public FifoCallQueue(int capacity, Option conf) {
+        this.queue = new LinkedBlockingQueue<Server.Call>(capacity);
+    }
+
+    @Override
+    public void put(Server.Call call) throws InterruptedException {
+        queue.put(call);
+    }
+
+    @Override
+    public boolean offer(Server.Call call) {
+        return queue.offer(call);
+    }
+
+    @Override
+    public Server.Call take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
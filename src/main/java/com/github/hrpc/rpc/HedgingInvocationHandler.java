@@ -0,0 +1,382 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.github.hrpc.rpc.Client.ConnectionId;
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+import com.github.hrpc.util.Time;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An invocation handler that hedges the calls to {@link Idempotent} methods
+ * over a set of equivalent servers.  A call is sent to one server; if it has
+ * not completed after a delay, a copy is sent to the next server, and so on
+ * while servers are left.  The first successful response is returned, and
+ * the copies still outstanding are cancelled.  When a copy fails and no
+ * other is outstanding, the next copy is sent at once; the call fails when
+ * every server has failed it.
+ *
+ * The delay is a percentile of the latencies of recent calls, so only the
+ * calls slower than most are hedged, at the cost of a few percent more
+ * calls.  Other methods are sent to one server only.  The servers take turns
+ * to receive the first copy of a call.
+ *
+ * The handler works in asynchronous mode, see
+ * {@link Client#setAsynchronousMode(boolean)}, as well.
+ *
+ * @see RPC#getHedgingProxy(Class, long, List, Option)
+ */
+public class HedgingInvocationHandler<T> implements RpcInvocationHandler {
+    public static final Log LOG = LogFactory.getLog(HedgingInvocationHandler.class);
+
+    /** Tells when to send the hedged copies of the calls. */
+    private static final ScheduledThreadPoolExecutor HEDGE_TIMER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("IPC Client hedging timer")
+                    .build());
+    static {
+        HEDGE_TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Sends the hedged copies of the calls.  Sending may connect and block,
+     * which neither the timer nor the response readers completing the
+     * copies may do.
+     */
+    private static final ExecutorService HEDGE_SENDER =
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("IPC Client hedge sender #%d")
+                    .build());
+
+    private final Class<T> protocol;
+    private final List<T> proxies;
+    private final AtomicInteger nextProxy = new AtomicInteger();
+    private final LatencyWindow latencies;
+    private final Map<Method, Boolean> idempotentMethods =
+            new ConcurrentHashMap<Method, Boolean>();
+
+    /**
+     * @param protocol the protocol the proxies implement
+     * @param proxies a proxy for each server
+     * @param conf configuration
+     */
+    public HedgingInvocationHandler(Class<T> protocol, List<T> proxies,
+                                    Option conf) {
+        if (proxies.isEmpty()) {
+            throw new IllegalArgumentException("No proxy to hedge " + protocol);
+        }
+        this.protocol = protocol;
+        this.proxies = new ArrayList<T>(proxies);
+        this.latencies = new LatencyWindow(
+                conf.getInt(CommonConfigurationKeys.IPC_CLIENT_HEDGING_PERCENTILE_KEY,
+                        CommonConfigurationKeys.IPC_CLIENT_HEDGING_PERCENTILE_DEFAULT),
+                conf.getInt(CommonConfigurationKeys.IPC_CLIENT_HEDGING_MIN_DELAY_KEY,
+                        CommonConfigurationKeys.IPC_CLIENT_HEDGING_MIN_DELAY_DEFAULT));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        final int first =
+                (nextProxy.getAndIncrement() & Integer.MAX_VALUE) % proxies.size();
+        if (proxies.size() == 1 || !isIdempotent(method)) {
+            try {
+                return method.invoke(proxies.get(first), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        final HedgedCall call = new HedgedCall(method, args, first);
+        final Object initialValue = call.start();
+        if (Client.isAsynchronousMode()) {
+            Client.setAsyncReturnValue(call);
+            return initialValue;
+        }
+        try {
+            return Uninterruptibles.getUninterruptibly(call);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** @return true if the method or its protocol is marked idempotent */
+    private boolean isIdempotent(Method method) {
+        Boolean idempotent = idempotentMethods.get(method);
+        if (idempotent == null) {
+            idempotent = method.isAnnotationPresent(Idempotent.class)
+                    || method.getDeclaringClass().isAnnotationPresent(Idempotent.class)
+                    || protocol.isAnnotationPresent(Idempotent.class);
+            if (!idempotent) {
+                // the method may be redeclared with the annotation
+                try {
+                    idempotent = protocol.getMethod(method.getName(),
+                            method.getParameterTypes()).isAnnotationPresent(Idempotent.class);
+                } catch (NoSuchMethodException e) {
+                    idempotent = false;
+                }
+            }
+            idempotentMethods.put(method, idempotent);
+        }
+        return idempotent;
+    }
+
+    /**
+     * Send a call to the given proxy in asynchronous mode.
+     * @return the value the proxy returned, with the future of the real
+     *         return value in {@link Client#getAsyncReturnValue()}
+     */
+    private Object invokeAsync(int index, Method method, Object[] args)
+            throws Throwable {
+        final boolean asynchronous = Client.isAsynchronousMode();
+        Client.setAsynchronousMode(true);
+        try {
+            return method.invoke(proxies.get(index), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            Client.setAsynchronousMode(asynchronous);
+        }
+    }
+
+    /** The copies of a call, and the future of its return value. */
+    private class HedgedCall extends CompletableFuture<Object>
+            implements BiConsumer<Object, Throwable> {
+        private final Method method;
+        private final Object[] args;
+        private final int first;
+        private final List<CompletableFuture<Object>> copies =
+                new ArrayList<CompletableFuture<Object>>();
+        private int sent;                   // copies sent, or being sent
+        private int outstanding;            // copies sent and not failed yet
+        private Throwable error;            // failure of the first copy to fail
+        private ScheduledFuture<?> hedge;   // has the next copy sent
+        private final Runnable sender = new Runnable() {
+            @Override
+            public void run() {
+                sendHedge();
+            }
+        };
+
+        HedgedCall(Method method, Object[] args, int first) {
+            this.method = method;
+            this.args = args;
+            this.first = first;
+        }
+
+        /**
+         * Send the first copy.
+         * @return the value the proxy returned for it
+         */
+        Object start() {
+            whenComplete(this);
+            final Object value = send(nextCopy());
+            scheduleHedge();
+            return value;
+        }
+
+        /** @return the index of the server to send the next copy to, or -1
+         *          if no copy is to be sent */
+        private synchronized int nextCopy() {
+            if (isDone() || sent == proxies.size()) {
+                return -1;
+            }
+            outstanding++;
+            return (first + sent++) % proxies.size();
+        }
+
+        /** Send a copy of the call.  No lock is held, as it may connect. */
+        private Object send(int index) {
+            final long startTime = Time.monotonicNow();
+            final Object value;
+            final CompletableFuture<Object> copy;
+            try {
+                value = invokeAsync(index, method, args);
+                copy = Client.getAsyncReturnValue();
+                if (copy == null) {
+                    throw new UnsupportedOperationException(
+                            "Asynchronous calls are not supported by " + proxies.get(index));
+                }
+            } catch (Throwable t) {
+                copyFailed(t);
+                return null;
+            }
+            synchronized (this) {
+                copies.add(copy);
+            }
+            copy.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object result, Throwable t) {
+                    if (t == null) {
+                        latencies.add(Time.monotonicNow() - startTime);
+                        complete(result);
+                    } else if (!(t instanceof CancellationException)) {
+                        copyFailed(t);
+                    }
+                }
+            });
+            if (isDone()) {
+                copy.cancel(false); // missed by accept()
+            }
+            return value;
+        }
+
+        private synchronized void scheduleHedge() {
+            if (hedge != null) {
+                hedge.cancel(false);
+                hedge = null;
+            }
+            if (!isDone() && sent < proxies.size()) {
+                hedge = HEDGE_TIMER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        HEDGE_SENDER.execute(sender);
+                    }
+                }, latencies.getDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void sendHedge() {
+            final int index = nextCopy();
+            if (index >= 0) {
+                send(index);
+                scheduleHedge();
+            }
+        }
+
+        private void copyFailed(Throwable t) {
+            final Throwable firstError;
+            final boolean serversLeft;
+            synchronized (this) {
+                if (error == null) {
+                    error = t;
+                }
+                if (--outstanding > 0) {
+                    return;
+                }
+                firstError = error;
+                serversLeft = sent < proxies.size();
+            }
+            if (serversLeft) {
+                // nothing to wait for; try the next server now, off the
+                // thread that completed the copy
+                HEDGE_SENDER.execute(sender);
+            } else {
+                completeExceptionally(firstError);
+            }
+        }
+
+        /** Cancel the copies once the call is complete. */
+        @Override
+        public void accept(Object value, Throwable t) {
+            final List<CompletableFuture<Object>> toCancel;
+            synchronized (this) {
+                if (hedge != null) {
+                    hedge.cancel(false);
+                }
+                toCancel = new ArrayList<CompletableFuture<Object>>(copies);
+            }
+            for (CompletableFuture<Object> copy : toCancel) {
+                copy.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The latencies of the most recent calls, from which the hedging delay is
+     * computed every so often.
+     */
+    static class LatencyWindow {
+        private static final int SIZE = 1024;
+        private static final int RECOMPUTE_INTERVAL = 64;
+
+        private final long[] samples = new long[SIZE];
+        private int next;                 // where the next sample goes
+        private int filled;               // samples taken, up to SIZE
+        private final int percentile;
+        private final long minDelay;
+        private volatile long delay;
+
+        LatencyWindow(int percentile, long minDelay) {
+            if (percentile <= 0 || percentile > 100) {
+                throw new IllegalArgumentException("Invalid percentile " + percentile);
+            }
+            this.percentile = percentile;
+            this.minDelay = minDelay;
+            this.delay = minDelay;
+        }
+
+        synchronized void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) & (SIZE - 1);
+            if (filled < SIZE) {
+                filled++;
+            }
+            if (filled <= RECOMPUTE_INTERVAL || (next & (RECOMPUTE_INTERVAL - 1)) == 0) {
+                final long[] sorted = Arrays.copyOf(samples, filled);
+                Arrays.sort(sorted);
+                final int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+                delay = Math.max(minDelay, sorted[Math.max(rank, 1) - 1]);
+            }
+        }
+
+        /** @return msecs to wait for a call before hedging it */
+        long getDelay() {
+            return delay;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (T proxy : proxies) {
+            RPC.stopProxy(proxy);
+        }
+    }
+
+    /** @return the connection of the first server */
+    @Override
+    public ConnectionId getConnectionId() {
+        return RPC.getConnectionIdForProxy(proxies.get(0));
+    }
+}
@@ -20,16 +20,22 @@ package com.github.hrpc.rpc;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 import javax.net.SocketFactory;
 
+import com.github.hrpc.io.DataInputBuffer;
 import com.github.hrpc.io.DataOutputOutputStream;
 import com.github.hrpc.io.Writable;
 import com.github.hrpc.util.Option;
@@ -41,6 +47,7 @@ import com.google.protobuf.BlockingService;
 import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.ServiceException;
 import com.google.protobuf.TextFormat;
@@ -193,6 +200,9 @@ public class ProtobufRpcEngine implements RpcEngine {
 
 
             Message theRequest = (Message) args[1];
+            if (Client.isAsynchronousMode()) {
+                return invokeAsync(method, rpcRequestHeader, theRequest);
+            }
             final RpcResponseWrapper val;
             try {
                 val = (RpcResponseWrapper) client.call(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
@@ -221,8 +231,7 @@ public class ProtobufRpcEngine implements RpcEngine {
             }
             Message returnMessage;
             try {
-                returnMessage = prototype.newBuilderForType()
-                        .mergeFrom(val.theResponseRead).build();
+                returnMessage = val.theResponseRead.parse(prototype);
 
                 if (LOG.isTraceEnabled()) {
                     LOG.trace(Thread.currentThread().getId() + ": Response <- " +
@@ -236,6 +245,43 @@ public class ProtobufRpcEngine implements RpcEngine {
             return returnMessage;
         }
 
+        /**
+         * Send the request without waiting for the response, and hand the
+         * future of the return message to {@link Client#getAsyncReturnValue()}.
+         */
+        private Object invokeAsync(final Method method,
+                                   RequestHeaderProto rpcRequestHeader, Message theRequest)
+                throws ServiceException {
+            final Message prototype;
+            try {
+                prototype = getReturnProtoType(method);
+            } catch (Exception e) {
+                throw new ServiceException(e);
+            }
+            final CompletableFuture<Writable> response = client.callAsync(
+                    RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                    new RpcRequestWrapper(rpcRequestHeader, theRequest), remoteId);
+            Client.setAsyncReturnValue(new Client.AsyncReturnValue<Message>(response) {
+                @Override
+                Message convert(Writable value) throws Exception {
+                    Message returnMessage =
+                            ((RpcResponseWrapper) value).theResponseRead.parse(prototype);
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace(Thread.currentThread().getId() + ": Response <- " +
+                                remoteId + ": " + method.getName() +
+                                " {" + TextFormat.shortDebugString(returnMessage) + "}");
+                    }
+                    return returnMessage;
+                }
+
+                @Override
+                Throwable convertException(Throwable t) {
+                    return t instanceof CancellationException ? t : new ServiceException(t);
+                }
+            }.start());
+            return null;
+        }
+
         @Override
         public void close() throws IOException {
             if (!isClosed) {
@@ -266,6 +312,46 @@ public class ProtobufRpcEngine implements RpcEngine {
     interface RpcWrapper extends Writable {
         int getLength();
     }
+
+    /**
+     * A serialized message as read from the wire.  If it was read from a
+     * {@link DataInputBuffer}, it stays in the buffer's array, so that it is
+     * parsed straight from the bytes received rather than from a copy.
+     */
+    static final class MessageBytes {
+        final byte[] bytes;
+        final int offset;
+        final int length;
+
+        private MessageBytes(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Read a message preceded by its length as a varint. */
+        static MessageBytes readDelimited(DataInput in) throws IOException {
+            final int length = ProtoUtil.readRawVarint32(in);
+            if (in instanceof DataInputBuffer) {
+                final DataInputBuffer buf = (DataInputBuffer) in;
+                final int offset = buf.getPosition();
+                if (length < 0 || length > buf.getLength() - offset) {
+                    throw new EOFException("Message of " + length
+                            + " bytes exceeds the " + (buf.getLength() - offset)
+                            + " bytes left in the buffer");
+                }
+                buf.skipBytes(length);
+                return new MessageBytes(buf.getData(), offset, length);
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new MessageBytes(bytes, 0, length);
+        }
+
+        Message parse(Message prototype) throws InvalidProtocolBufferException {
+            return prototype.getParserForType().parseFrom(bytes, offset, length);
+        }
+    }
     /**
      * Wrapper for Protocol Buffer Requests
      *
@@ -277,7 +363,7 @@ public class ProtobufRpcEngine implements RpcEngine {
             implements RpcWrapper {
         T requestHeader;
         Message theRequest; // for clientSide, the request is here
-        byte[] theRequestRead; // for server side, the request is here
+        MessageBytes theRequestRead; // for server side, the request is here
 
         public RpcMessageWithHeader() {
         }
@@ -297,31 +383,20 @@ public class ProtobufRpcEngine implements RpcEngine {
 
         @Override
         public void readFields(DataInput in) throws IOException {
-            requestHeader = parseHeaderFrom(readVarintBytes(in));
+            requestHeader = parseHeaderFrom(MessageBytes.readDelimited(in));
             theRequestRead = readMessageRequest(in);
         }
 
-        abstract T parseHeaderFrom(byte[] bytes) throws IOException;
+        abstract T parseHeaderFrom(MessageBytes bytes) throws IOException;
 
-        byte[] readMessageRequest(DataInput in) throws IOException {
-            return readVarintBytes(in);
-        }
-
-        private static byte[] readVarintBytes(DataInput in) throws IOException {
-            final int length = ProtoUtil.readRawVarint32(in);
-            final byte[] bytes = new byte[length];
-            in.readFully(bytes);
-            return bytes;
+        MessageBytes readMessageRequest(DataInput in) throws IOException {
+            return MessageBytes.readDelimited(in);
         }
 
         public T getMessageHeader() {
             return requestHeader;
         }
 
-        public byte[] getMessageBytes() {
-            return theRequestRead;
-        }
-
         @Override
         public int getLength() {
             int headerLen = requestHeader.getSerializedSize();
@@ -350,8 +425,9 @@ public class ProtobufRpcEngine implements RpcEngine {
         }
 
         @Override
-        RequestHeaderProto parseHeaderFrom(byte[] bytes) throws IOException {
-            return RequestHeaderProto.parseFrom(bytes);
+        RequestHeaderProto parseHeaderFrom(MessageBytes bytes) throws IOException {
+            return RequestHeaderProto.PARSER.parseFrom(
+                    bytes.bytes, bytes.offset, bytes.length);
         }
 
         @Override
@@ -371,8 +447,9 @@ public class ProtobufRpcEngine implements RpcEngine {
         }
 
         @Override
-        RpcRequestHeaderProto parseHeaderFrom(byte[] bytes) throws IOException {
-            return RpcRequestHeaderProto.parseFrom(bytes);
+        RpcRequestHeaderProto parseHeaderFrom(MessageBytes bytes) throws IOException {
+            return RpcRequestHeaderProto.PARSER.parseFrom(
+                    bytes.bytes, bytes.offset, bytes.length);
         }
     }
 
@@ -386,7 +463,7 @@ public class ProtobufRpcEngine implements RpcEngine {
         }
 
         @Override
-        byte[] readMessageRequest(DataInput in) throws IOException {
+        MessageBytes readMessageRequest(DataInput in) throws IOException {
             // error message contain no message body
             switch (requestHeader.getStatus()) {
                 case ERROR:
@@ -398,8 +475,9 @@ public class ProtobufRpcEngine implements RpcEngine {
         }
 
         @Override
-        RpcResponseHeaderProto parseHeaderFrom(byte[] bytes) throws IOException {
-            return RpcResponseHeaderProto.parseFrom(bytes);
+        RpcResponseHeaderProto parseHeaderFrom(MessageBytes bytes) throws IOException {
+            return RpcResponseHeaderProto.PARSER.parseFrom(
+                    bytes.bytes, bytes.offset, bytes.length);
         }
     }
 
@@ -412,7 +490,7 @@ public class ProtobufRpcEngine implements RpcEngine {
      */
     public static class RpcResponseWrapper implements RpcWrapper {
         Message theResponse; // for senderSide, the response is here
-        byte[] theResponseRead; // for receiver side, the response is here
+        MessageBytes theResponseRead; // for receiver side, the response is here
 
         public RpcResponseWrapper() {
         }
@@ -429,9 +507,7 @@ public class ProtobufRpcEngine implements RpcEngine {
 
         @Override
         public void readFields(DataInput in) throws IOException {
-            int length = ProtoUtil.readRawVarint32(in);
-            theResponseRead = new byte[length];
-            in.readFully(theResponseRead);
+            theResponseRead = MessageBytes.readDelimited(in);
         }
 
         @Override
@@ -494,6 +570,48 @@ public class ProtobufRpcEngine implements RpcEngine {
                     protocolImpl);
         }
 
+        /**
+         * Respond to the current call with the result of the given future
+         * rather than with the return value of the method serving it, which
+         * is ignored.  The handler serves other calls while the future is
+         * pending, so a few handlers can keep many long calls outstanding.
+         * To be called by the method serving the call.
+         *
+         * @param future completed with the response, or with the exception
+         *               the call fails with
+         * @throws IllegalStateException if not called while serving a call
+         */
+        public static void deferResponse(CompletableFuture<? extends Message> future) {
+            final Call call = getCurCall().get();
+            final com.github.hrpc.rpc.Server server = get();
+            if (call == null || server == null) {
+                throw new IllegalStateException("Not serving a call");
+            }
+            call.deferResponse();
+            final long startTime = Time.now();
+            future.whenComplete(new BiConsumer<Message, Throwable>() {
+                @Override
+                public void accept(Message result, Throwable t) {
+                    server.rpcMetrics.addRpcProcessingTime((int) (Time.now() - startTime));
+                    try {
+                        if (t == null) {
+                            call.sendResponse(new RpcResponseWrapper(result));
+                            return;
+                        }
+                        if (t instanceof CompletionException && t.getCause() != null) {
+                            t = t.getCause();
+                        }
+                        if (t instanceof ServiceException && t.getCause() != null) {
+                            t = t.getCause();
+                        }
+                        call.sendError(t);
+                    } catch (IOException e) {
+                        LOG.warn("Failed to respond to " + call, e);
+                    }
+                }
+            });
+        }
+
         /**
          * Protobuf invoker for {@link RpcInvoker}
          */
@@ -559,8 +677,7 @@ public class ProtobufRpcEngine implements RpcEngine {
                     throw new RpcNoSuchMethodException(msg);
                 }
                 Message prototype = service.getRequestPrototype(methodDescriptor);
-                Message param = prototype.newBuilderForType()
-                        .mergeFrom(request.theRequestRead).build();
+                Message param = request.theRequestRead.parse(prototype);
 
                 Message result;
                 try {
@@ -573,7 +690,11 @@ public class ProtobufRpcEngine implements RpcEngine {
                                 " procesingTime= " + processingTime);
                     }
                     server.rpcMetrics.addRpcQueueTime(qTime);
-                    server.rpcMetrics.addRpcProcessingTime(processingTime);
+                    Call current = getCurCall().get();
+                    if (current == null || !current.isResponseDeferred()) {
+                        // deferred calls are measured when they complete
+                        server.rpcMetrics.addRpcProcessingTime(processingTime);
+                    }
                 } catch (ServiceException e) {
                     throw (Exception) e.getCause();
                 } catch (Exception e) {
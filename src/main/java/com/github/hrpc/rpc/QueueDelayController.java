@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sheds load when the calls wait too long in the call queue, after CoDel
+ * (controlled delay).
+ *
+ * The time a call waits between being read and being picked up by a
+ * handler is its queue delay.  A short burst fills the queue for a moment
+ * only, while under overload even the calls served quickest have waited: so
+ * the server is deemed overloaded when the minimum queue delay over an
+ * interval is above the target.  While it is, the calls that waited more
+ * than twice the target are failed at once rather than served, which drains
+ * the queue and keeps the delay of the remaining calls bounded; the clients
+ * of the failed calls may retry later.
+ */
+class QueueDelayController {
+    private final long target;        // msecs
+    private final long interval;      // msecs
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private volatile long intervalEnd;
+    private volatile boolean overloaded;
+
+    /**
+     * @param target queue delay, in msecs, under which calls are served
+     * @param interval msecs over which the minimum delay is taken
+     * @param now the current time, in msecs
+     */
+    QueueDelayController(long target, long interval, long now) {
+        if (target <= 0 || interval <= 0) {
+            throw new IllegalArgumentException("Invalid target " + target
+                    + " or interval " + interval);
+        }
+        this.target = target;
+        this.interval = interval;
+        this.intervalEnd = now + interval;
+    }
+
+    /**
+     * Record the queue delay of a call picked up by a handler.
+     * @param delay msecs the call waited in the queue
+     * @param now the current time, in msecs
+     * @return true if the call is to be failed rather than served
+     */
+    boolean reject(long delay, long now) {
+        if (now >= intervalEnd) {
+            synchronized (this) {
+                if (now >= intervalEnd) {
+                    final long min = minDelay.getAndSet(Long.MAX_VALUE);
+                    // an interval without a call picked up, this one or any
+                    // since, was idle rather than overloaded
+                    overloaded = min != Long.MAX_VALUE && min > target
+                            && now < intervalEnd + interval;
+                    intervalEnd = now + interval;
+                }
+            }
+        }
+        long min;
+        while (delay < (min = minDelay.get())
+                && !minDelay.compareAndSet(min, delay)) {
+            // lost a race with another handler; try again
+        }
+        return overloaded && delay > 2 * target;
+    }
+
+    /** @return true if the last interval saw no call served within target */
+    boolean isOverloaded() {
+        return overloaded;
+    }
+}
@@ -6,6 +6,7 @@ import com.github.hrpc.net.NetUtils;
 import com.github.hrpc.rpc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcStatusProto;
 import com.github.hrpc.rpc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcErrorCodeProto;
 import com.github.hrpc.rpc.protobuf.ProtocolInfoProtos.ProtocolInfoService;
+import com.github.hrpc.util.CommonConfigurationKeys;
 import com.github.hrpc.util.Option;
 import com.github.hrpc.util.ReflectionUtils;
 import com.github.hrpc.util.Time;
@@ -450,6 +451,37 @@ public class RPC {
                 conf, factory, rpcTimeout, null).getProxy();
     }
 
+    /**
+     * Construct a client-side proxy that implements the named protocol,
+     * talking to a server at the named address, whose calls give up when
+     * the response does not arrive in time.
+     *
+     * @param <T>
+     * @param protocol      protocol
+     * @param clientVersion client's version
+     * @param addr          server address
+     * @param conf          configuration
+     * @param factory       socket factory
+     * @param rpcTimeout    max time for each rpc; 0 means no timeout
+     * @param callTimeout   max time to wait for the response of each call,
+     *                      also passed to the server; 0 means no timeout
+     * @return the proxy
+     * @throws IOException if any error occurs
+     */
+    public static <T> T getProxy(Class<T> protocol,
+                                 long clientVersion,
+                                 InetSocketAddress addr,
+                                 Option conf,
+                                 SocketFactory factory,
+                                 int rpcTimeout,
+                                 int callTimeout) throws IOException {
+        Option proxyConf = new Option(conf);
+        proxyConf.setInt(CommonConfigurationKeys.IPC_CLIENT_CALL_TIMEOUT_KEY,
+                callTimeout);
+        return getProtocolProxy(protocol, clientVersion, addr,
+                proxyConf, factory, rpcTimeout, null).getProxy();
+    }
+
     /**
      * Get a protocol proxy that contains a proxy connection to a remote server
      * and a set of methods that are supported by the server
@@ -493,6 +525,75 @@ public class RPC {
         return getProtocolProxy(protocol, clientVersion, addr, conf).getProxy();
     }
 
+    /**
+     * Construct a client-side proxy that implements the named protocol over a
+     * set of servers that serve the same data.  Calls to {@link Idempotent}
+     * methods that are slow to answer are sent to another server as well,
+     * and the first response is used; see {@link HedgingInvocationHandler}.
+     *
+     * @param <T>
+     * @param protocol      protocol
+     * @param clientVersion client's version
+     * @param addrs         server addresses
+     * @param conf          configuration
+     * @return the proxy
+     * @throws IOException if any error occurs
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T getHedgingProxy(Class<T> protocol,
+                                        long clientVersion,
+                                        List<InetSocketAddress> addrs,
+                                        Option conf) throws IOException {
+        List<T> proxies = getProxies(protocol, clientVersion, addrs, conf);
+        return (T) Proxy.newProxyInstance(protocol.getClassLoader(),
+                new Class[] { protocol },
+                new HedgingInvocationHandler<T>(protocol, proxies, conf));
+    }
+
+    /**
+     * Construct a client-side proxy that implements the named protocol over a
+     * set of servers that serve the same data.  Each call goes to one server,
+     * chosen to avoid the servers that are busy or slow; see
+     * {@link BalancingInvocationHandler}.
+     *
+     * @param <T>
+     * @param protocol      protocol
+     * @param clientVersion client's version
+     * @param addrs         server addresses
+     * @param conf          configuration
+     * @return the proxy
+     * @throws IOException if any error occurs
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T getBalancingProxy(Class<T> protocol,
+                                          long clientVersion,
+                                          List<InetSocketAddress> addrs,
+                                          Option conf) throws IOException {
+        List<T> proxies = getProxies(protocol, clientVersion, addrs, conf);
+        return (T) Proxy.newProxyInstance(protocol.getClassLoader(),
+                new Class[] { protocol },
+                new BalancingInvocationHandler<T>(protocol, proxies, conf));
+    }
+
+    /** Construct a proxy for each address. */
+    private static <T> List<T> getProxies(Class<T> protocol,
+                                          long clientVersion,
+                                          List<InetSocketAddress> addrs,
+                                          Option conf) throws IOException {
+        List<T> proxies = new ArrayList<T>(addrs.size());
+        try {
+            for (InetSocketAddress addr : addrs) {
+                proxies.add(getProxy(protocol, clientVersion, addr, conf));
+            }
+        } catch (IOException e) {
+            for (T proxy : proxies) {
+                stopProxy(proxy);
+            }
+            throw e;
+        }
+        return proxies;
+    }
+
     /**
      * Returns the server address for a given proxy.
      */
@@ -590,6 +691,7 @@ public class RPC {
         private boolean verbose = false;
         private final Option conf;
         private String portRangeConfig = null;
+        private int maxConcurrentCalls = -1;
 
         public Builder(Option conf) {
             this.conf = conf;
@@ -667,6 +769,22 @@ public class RPC {
             return this;
         }
 
+        /**
+         * Serve each call on a thread of its own, a virtual thread if the
+         * JVM has them, instead of on a fixed set of handlers.  The ThreadLocal
+         * accessors such as {@link Server#getCurCall()} work on these threads
+         * as well.
+         *
+         * Default: ipc.server.max.concurrent.calls, 0 for a fixed set of
+         * handlers
+         *
+         * @param maxConcurrentCalls the most calls to serve at once
+         */
+        public Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+            return this;
+        }
+
         /**
          * Build the RPC Server.
          *
@@ -684,10 +802,17 @@ public class RPC {
                 throw new IllegalArgumentException("instance is not set");
             }
 
-            return getProtocolEngine(this.protocol, this.conf).getServer(
+            Option serverConf = this.conf;
+            if (this.maxConcurrentCalls >= 0) {
+                serverConf = new Option(this.conf);
+                serverConf.setInt(
+                        CommonConfigurationKeys.IPC_SERVER_MAX_CONCURRENT_CALLS_KEY,
+                        this.maxConcurrentCalls);
+            }
+            return getProtocolEngine(this.protocol, serverConf).getServer(
                     this.protocol, this.instance, this.bindAddress, this.port,
                     this.numHandlers, this.numReaders, this.queueSizePerHandler,
-                    this.verbose, this.conf, this.portRangeConfig);
+                    this.verbose, serverConf, this.portRangeConfig);
         }
     }
 
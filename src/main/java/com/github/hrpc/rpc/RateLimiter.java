@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+
+/**
+ * Caps the rate of calls each client, and each protocol, may make to a
+ * server with token buckets.
+ *
+ * A bucket is kept as the time at which it would be full again, the
+ * generic cell rate algorithm: a call is let through if that time is less
+ * than a burst of calls away, and pushes it one call further.  A bucket is
+ * thus a single long updated with compare-and-set, so checking a call takes
+ * no lock.  Clients are told apart by their client id, or by their address
+ * if so configured.  The buckets of the clients that are full again are
+ * dropped now and then.
+ */
+class RateLimiter {
+    /** Nanos between two sweeps of the full buckets. */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final Option conf;
+    private final Rate clientRate;      // null if clients are not limited
+    private final boolean identifyByAddress;
+    private final ConcurrentMap<Object, AtomicLong> clients =
+            new ConcurrentHashMap<Object, AtomicLong>();
+    private final ConcurrentMap<String, Bucket> protocols =
+            new ConcurrentHashMap<String, Bucket>();
+    private final AtomicLong nextSweep;
+
+    /** @return a limiter, or null if no rate is configured */
+    static RateLimiter create(Option conf) {
+        final RateLimiter limiter = new RateLimiter(conf);
+        if (limiter.clientRate == null && getProtocolRate(conf, null) == null
+                && !hasProtocolRates(conf)) {
+            return null;
+        }
+        return limiter;
+    }
+
+    RateLimiter(Option conf) {
+        this.conf = conf;
+        this.clientRate = Rate.create(
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_RATE_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_RATE_DEFAULT),
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_BURST_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_BURST_DEFAULT));
+        final String identity = conf.get(
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_IDENTITY_KEY,
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_IDENTITY_DEFAULT);
+        if ("ip".equalsIgnoreCase(identity)) {
+            this.identifyByAddress = true;
+        } else if ("clientid".equalsIgnoreCase(identity)) {
+            this.identifyByAddress = false;
+        } else {
+            throw new IllegalArgumentException("Invalid caller identity " + identity);
+        }
+        this.nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+    }
+
+    /**
+     * Take a token for a call from the buckets of its client and protocol.
+     * @return 0 if the call may go on, or else the msecs after which it
+     *         would have been let through
+     */
+    long acquire(Server.Call call, String protocol) {
+        final long now = System.nanoTime();
+        long wait = 0;
+        AtomicLong clientBucket = null;
+        if (clientRate != null) {
+            clientBucket = getBucket(getIdentity(call));
+            wait = clientRate.acquire(clientBucket, now);
+            sweep(now);
+        }
+        if (wait == 0 && protocol != null) {
+            final Bucket bucket = getProtocolBucket(protocol);
+            if (bucket.rate != null) {
+                wait = bucket.rate.acquire(bucket, now);
+                if (wait > 0 && clientBucket != null) {
+                    // the call is refused: it does not count for its client
+                    clientRate.release(clientBucket);
+                }
+            }
+        }
+        return wait == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    /** @return the caller of a call, as far as rates are concerned */
+    private Object getIdentity(Server.Call call) {
+        final byte[] clientId = call.getClientId();
+        if (identifyByAddress || clientId == null || clientId.length == 0) {
+            return call.getRemoteAddress();
+        }
+        return ByteBuffer.wrap(clientId);
+    }
+
+    private AtomicLong getBucket(Object client) {
+        AtomicLong bucket = clients.get(client);
+        if (bucket == null) {
+            bucket = new AtomicLong(Long.MIN_VALUE);
+            final AtomicLong existing = clients.putIfAbsent(client, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    private Bucket getProtocolBucket(String protocol) {
+        Bucket bucket = protocols.get(protocol);
+        if (bucket == null) {
+            bucket = new Bucket(getProtocolRate(conf, protocol));
+            final Bucket existing = protocols.putIfAbsent(protocol, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    /** Drop the buckets of the clients that are full again, as a new
+     *  bucket would be. */
+    private void sweep(long now) {
+        final long next = nextSweep.get();
+        if (now - next < 0 || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return;
+        }
+        final Iterator<AtomicLong> iter = clients.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().get() - now <= 0) {
+                iter.remove();
+            }
+        }
+    }
+
+    /** @return the rate of a protocol, or of all protocols if null */
+    private static Rate getProtocolRate(Option conf, String protocol) {
+        final String suffix = protocol == null ? "" : "." + protocol;
+        final int defaultRate = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_RATE_KEY,
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_RATE_DEFAULT);
+        final int defaultBurst = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_BURST_KEY,
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_BURST_DEFAULT);
+        return Rate.create(
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_RATE_KEY
+                        + suffix, defaultRate),
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_BURST_KEY
+                        + suffix, defaultBurst));
+    }
+
+    /** @return true if the rate of some protocol is configured */
+    private static boolean hasProtocolRates(Option conf) {
+        final String prefix =
+                CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_RATE_KEY + ".";
+        for (String name : conf.getPropsWithPrefix(prefix).keySet()) {
+            if (getProtocolRate(conf, name) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The bucket of a protocol, with the rate it is filled at. */
+    private static class Bucket extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        final Rate rate;
+
+        Bucket(Rate rate) {
+            super(Long.MIN_VALUE);
+            this.rate = rate;
+        }
+    }
+
+    /** A rate of calls, and the burst of calls let through at once. */
+    static class Rate {
+        private final long interval;    // nanos between two calls
+        private final long tolerance;   // nanos a full bucket is ahead
+
+        /** @return the rate, or null if calls per second is not positive */
+        static Rate create(int callsPerSecond, int burst) {
+            if (callsPerSecond <= 0) {
+                return null;
+            }
+            return new Rate(callsPerSecond, burst > 0 ? burst : callsPerSecond);
+        }
+
+        Rate(int callsPerSecond, int burst) {
+            this.interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / callsPerSecond);
+            this.tolerance = interval * (burst - 1);
+        }
+
+        /**
+         * @param bucket the time at which the bucket is full again
+         * @return 0 if a token was taken, or the nanos until one is
+         */
+        long acquire(AtomicLong bucket, long now) {
+            while (true) {
+                final long full = bucket.get();
+                final long start = full == Long.MIN_VALUE || full - now < 0 ? now : full;
+                final long wait = start - tolerance - now;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (bucket.compareAndSet(full, start + interval)) {
+                    return 0;
+                }
+            }
+        }
+
+        /** Give back a token taken from the bucket. */
+        void release(AtomicLong bucket) {
+            bucket.addAndGet(-interval);
+        }
+    }
+}
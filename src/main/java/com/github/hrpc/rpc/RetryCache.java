@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.hrpc.io.Writable;
+
+/**
+ * Remembers the outcome of the recent calls by client id and call id, so
+ * that a retried call is answered without being served again.
+ *
+ * A call is recorded when it is read.  A retry of a call that completed
+ * gets its response again; a retry of a call still being served waits for
+ * it and gets the same response.  Only the value or error of a call is
+ * kept, the response being serialized anew for each retry.  Completed calls
+ * are forgotten after an expiry time, and the oldest calls once the cache
+ * is full.  A call still not complete after the expiry time is forgotten
+ * as well, so that its next retry is served again.  The cache is split
+ * into stripes, each with a lock of its own, so that readers and handlers
+ * seldom contend.
+ */
+class RetryCache {
+    private static final int STRIPES = 16;
+
+    /** Returned by lookup for a retry that waits on the earlier call. */
+    static final Entry PENDING = new Entry(null, Long.MAX_VALUE);
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long expiry;
+
+    /**
+     * @param capacity the number of calls to remember
+     * @param expiry msecs to remember a completed call for, and to wait
+     *        for a call still being served
+     */
+    RetryCache(int capacity, long expiry) {
+        if (capacity <= 0 || expiry <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity
+                    + " or expiry " + expiry);
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe((capacity + STRIPES - 1) / STRIPES);
+        }
+        this.expiry = expiry;
+    }
+
+    /**
+     * Look up a call read from a client, recording it if it is new.
+     * @param now the current time, in msecs
+     * @return null if the call is to be served; the entry of the earlier
+     *         call it is a retry of, if that is complete; or else PENDING,
+     *         the retry waiting for the earlier call to complete
+     */
+    Entry lookup(Server.Call call, long now) {
+        final byte[] clientId = call.getClientId();
+        if (clientId == null || clientId.length == 0) {
+            return null;                   // retries cannot be told apart
+        }
+        final Key key = new Key(clientId, call.getCallId());
+        final Stripe stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        synchronized (stripe) {
+            stripe.expire(now);
+            final Entry entry = stripe.get(key);
+            if (entry != null && !entry.isExpired(now)) {
+                if (!entry.done) {
+                    entry.waiters.add(call);
+                    return PENDING;
+                }
+                return entry;
+            }
+            final Entry added = new Entry(key, now + expiry);
+            stripe.put(key, added);
+            call.retryEntry = added;
+            return null;
+        }
+    }
+
+    /**
+     * Record the outcome of a call.
+     * @return the retries of the call waiting for it
+     */
+    List<Server.Call> complete(Entry entry, Writable value, Throwable error,
+                               long now) {
+        final Stripe stripe = stripes[(entry.key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        synchronized (stripe) {
+            entry.value = value;
+            entry.error = error;
+            entry.expiryTime = now + expiry;
+            entry.done = true;
+            return entry.takeWaiters();
+        }
+    }
+
+    /**
+     * Forget a call that was not served, so that its next retry is.
+     * @return the retries of the call waiting for it
+     */
+    List<Server.Call> remove(Entry entry) {
+        final Stripe stripe = stripes[(entry.key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        synchronized (stripe) {
+            if (stripe.get(entry.key) == entry) {
+                stripe.remove(entry.key);
+            }
+            return entry.takeWaiters();
+        }
+    }
+
+    /** @return the number of calls remembered */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /** The calls of a stripe, oldest first. */
+    private static class Stripe extends LinkedHashMap<Key, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > capacity;
+        }
+
+        /** Drop the oldest calls as long as they have expired. */
+        void expire(long now) {
+            final Iterator<Entry> iter = values().iterator();
+            while (iter.hasNext() && iter.next().isExpired(now)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /** The client id and call id of a call. */
+    private static class Key {
+        private final byte[] clientId;
+        private final int callId;
+        private final int hash;
+
+        Key(byte[] clientId, int callId) {
+            this.clientId = clientId;
+            this.callId = callId;
+            this.hash = 31 * Arrays.hashCode(clientId) + callId;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return callId == other.callId && Arrays.equals(clientId, other.clientId);
+        }
+    }
+
+    /** A call, and its outcome once it is complete. */
+    static class Entry {
+        private final Key key;
+        private List<Server.Call> waiters = new ArrayList<Server.Call>(0);
+        private boolean done;
+        private Writable value;
+        private Throwable error;
+        private long expiryTime;
+
+        Entry(Key key, long expiryTime) {
+            this.key = key;
+            this.expiryTime = expiryTime;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiryTime;
+        }
+
+        private List<Server.Call> takeWaiters() {
+            final List<Server.Call> taken = waiters;
+            waiters = Collections.emptyList();
+            return taken;
+        }
+
+        Writable getValue() {
+            return value;
+        }
+
+        Throwable getError() {
+            return error;
+        }
+    }
+}
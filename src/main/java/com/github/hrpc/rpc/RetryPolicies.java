@@ -34,7 +34,6 @@ import java.util.concurrent.TimeUnit;
 import com.github.hrpc.net.ConnectTimeoutException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.ipc.StandbyException;
 
 /**
  * <p>
@@ -149,6 +148,13 @@ public class RetryPolicies {
                 delayMillis, maxDelayBase);
     }
 
+    public static final RetryPolicy failoverOnNetworkException(
+            RetryPolicy fallbackPolicy, int maxFailovers, int maxRetries,
+            long delayMillis, long maxDelayBase) {
+        return new FailoverOnNetworkExceptionRetry(fallbackPolicy, maxFailovers,
+                maxRetries, delayMillis, maxDelayBase);
+    }
+
     static class TryOnceThenFail implements RetryPolicy {
         @Override
         public RetryAction shouldRetry(Exception e, int retries, int failovers,
@@ -505,6 +511,12 @@ public class RetryPolicies {
      * The first failover is immediate, while all subsequent failovers wait an
      * exponentially-increasing random amount of time.
      *
+     * Retry the same server after an exponentially-increasing random amount
+     * of time, up to maxRetries times, in the case of:
+     *   Remote RpcServerOverloadedException (call shed unserved)
+     *   Remote RpcThrottledException (call over the rate of its client)
+     * Without a delay given, these retries wait from 100 msecs up to 10 secs.
+     *
      * Fail immediately in the case of:
      *   Socket exceptions after initial connection when operation is not idempotent
      *
@@ -512,8 +524,12 @@ public class RetryPolicies {
      */
     static class FailoverOnNetworkExceptionRetry implements RetryPolicy {
 
+        private static final long DEFAULT_BACKOFF_MILLIS = 100;
+        private static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
         private RetryPolicy fallbackPolicy;
         private int maxFailovers;
+        private int maxRetries;
         private long delayMillis;
         private long maxDelayBase;
 
@@ -524,8 +540,14 @@ public class RetryPolicies {
 
         public FailoverOnNetworkExceptionRetry(RetryPolicy fallbackPolicy,
                                                int maxFailovers, long delayMillis, long maxDelayBase) {
+            this(fallbackPolicy, maxFailovers, maxFailovers, delayMillis, maxDelayBase);
+        }
+
+        public FailoverOnNetworkExceptionRetry(RetryPolicy fallbackPolicy,
+                                               int maxFailovers, int maxRetries, long delayMillis, long maxDelayBase) {
             this.fallbackPolicy = fallbackPolicy;
             this.maxFailovers = maxFailovers;
+            this.maxRetries = maxRetries;
             this.delayMillis = delayMillis;
             this.maxDelayBase = maxDelayBase;
         }
@@ -550,6 +572,18 @@ public class RetryPolicies {
                         // retry immediately if this is our first failover, sleep otherwise
                         failovers == 0 ? 0 :
                                 calculateExponentialTime(delayMillis, failovers, maxDelayBase));
+            } else if (isWrappedOverloadedException(e)
+                    || isWrappedThrottledException(e)) {
+                if (retries >= maxRetries) {
+                    return fallbackPolicy.shouldRetry(e, retries, failovers,
+                            isIdempotentOrAtMostOnce);
+                }
+                // the call was not served; give the server time to drain
+                return new RetryAction(RetryAction.RetryDecision.RETRY,
+                        calculateExponentialTime(
+                                delayMillis > 0 ? delayMillis : DEFAULT_BACKOFF_MILLIS,
+                                retries,
+                                maxDelayBase > 0 ? maxDelayBase : DEFAULT_MAX_BACKOFF_MILLIS));
             } else if (e instanceof SocketException ||
                     (e instanceof IOException && !(e instanceof RemoteException))) {
                 if (isIdempotentOrAtMostOnce) {
@@ -579,7 +613,11 @@ public class RetryPolicies {
      */
     private static long calculateExponentialTime(long time, int retries,
                                                  long cap) {
-        long baseTime = Math.min(time * (1L << retries), cap);
+        long baseTime = cap;
+        // past the leading zeros of time, the shift would overflow
+        if (time == 0 || retries < Long.numberOfLeadingZeros(time) - 1) {
+            baseTime = Math.min(time << retries, cap);
+        }
         return (long) (baseTime * (RANDOM.get().nextDouble() + 0.5));
     }
 
@@ -595,4 +633,14 @@ public class RetryPolicies {
                 StandbyException.class);
         return unwrapped instanceof StandbyException;
     }
+
+    private static boolean isWrappedOverloadedException(Exception e) {
+        return e instanceof RemoteException && RpcServerOverloadedException.class
+                .getName().equals(((RemoteException) e).getClassName());
+    }
+
+    private static boolean isWrappedThrottledException(Exception e) {
+        return e instanceof RemoteException && RpcThrottledException.class
+                .getName().equals(((RemoteException) e).getClassName());
+    }
 }
@@ -19,10 +19,10 @@
 package com.github.hrpc.rpc;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.BindException;
 import java.net.InetAddress;
@@ -30,11 +30,15 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NetworkChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -50,18 +54,27 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.security.sasl.SaslServer;
 
-import com.github.hrpc.io.DataOutputBuffer;
+import com.github.hrpc.io.BufferPool;
+import com.github.hrpc.io.ByteBufferOutputStream;
+import com.github.hrpc.io.DataInputBuffer;
 import com.github.hrpc.io.Writable;
 import com.github.hrpc.net.NetUtils;
 import com.github.hrpc.rpc.metrics.RpcMetrics;
 import com.github.hrpc.util.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
@@ -300,16 +313,48 @@ public abstract class Server {
     private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
     volatile private boolean running = true;         // true while server runs
-    private BlockingQueue<Call> callQueue; // queued calls
-
-    private List<Connection> connectionList =
-            Collections.synchronizedList(new LinkedList<Connection>());
-    //maintain a list
-    //of client connections
+    private CallQueue callQueue; // queued calls
+    private final BufferPool requestBuffers; // requests are read into
+    private final boolean rebalanceReaders;  // move hot connections between readers
+    private final int maxOutstandingCalls;   // per connection, before reads pause
+    private final QueueDelayController queueDelay; // sheds load, or null
+    private final RateLimiter rateLimiter;   // caps the rates of calls, or null
+    private final RetryCache retryCache;     // answers retried calls, or null
+    // connections whose reads are paused, over all readers
+    private final AtomicInteger pausedConnections = new AtomicInteger();
+    private final BufferPool responseBuffers; // responses are written from
+
+    // the open connections
+    private final ConnectionRegistry<Connection> connections =
+            new ConnectionRegistry<Connection>();
     private Listener listener = null;
+    // runs the idle and purge timeouts of the connections
+    private final TimerWheel timer;
+    // connections closed for being idle since idleCloseWindowStart;
+    // only used by the timer
+    private long idleCloseWindowStart;
+    private int idleClosed;
     private Responder responder = null;
-    private int numConnections = 0;
     private Handler[] handlers = null;
+    private CallDispatcher callDispatcher = null;
+    private final int maxConcurrentCalls;          // 0 for a fixed set of handlers
+    private Semaphore concurrentCalls;
+    private ExecutorService callExecutor;
+
+    /**
+     * @return the SO_REUSEPORT option, from Java 9 on, if the channel
+     *         supports it, or else null
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption(NetworkChannel channel) {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            return channel.supportedOptions().contains(option) ? option : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
     /**
      * A convenience method to bind to a given address and report
@@ -367,11 +412,14 @@ public abstract class Server {
     }
 
     Iterable<? extends Thread> getHandlers() {
+        if (callDispatcher != null) {
+            return Collections.singletonList(callDispatcher);
+        }
         return Arrays.asList(handlers);
     }
 
     List<Connection> getConnections() {
-        return connectionList;
+        return connections.snapshot();
     }
 
     /** A call queued for handling. */
@@ -385,6 +433,11 @@ public abstract class Server {
         private ByteBuffer rpcResponse;       // the response for this call
         private final RPC.RpcKind rpcKind;
         private final byte[] clientId;
+        private long deadline;                // time the client gives up; 0 if never
+        private volatile boolean deferred;    // responded to by sendResponse/sendError
+        private ByteBuffer requestBuffer;     // the request was read into; pooled
+        private boolean responded;            // a deferred response was sent
+        RetryCache.Entry retryEntry;          // records the outcome, or null
 
         public Call(int id, int retryCount, Writable param,
                     Connection connection) {
@@ -413,6 +466,75 @@ public abstract class Server {
         public void setResponse(ByteBuffer response) {
             this.rpcResponse = response;
         }
+
+        /** @return the id of the call, unique for the client */
+        public int getCallId() {
+            return callId;
+        }
+
+        /** @return the id of the client that made the call */
+        public byte[] getClientId() {
+            return clientId;
+        }
+
+        /** @return the address of the client that made the call */
+        public String getRemoteAddress() {
+            return connection.getHostAddress();
+        }
+
+        /** @return true if the client has given up on the call by now */
+        boolean isExpired(long now) {
+            return deadline > 0 && now >= deadline;
+        }
+
+        /**
+         * Do not respond to this call when the method serving it returns, so
+         * that the handler can serve other calls in the meantime.  The
+         * response is sent later, from any thread, by
+         * {@link #sendResponse(Writable)} or {@link #sendError(Throwable)}.
+         * To be called by the method serving the call, see
+         * {@link Server#getCurCall()}.
+         */
+        public void deferResponse() {
+            this.deferred = true;
+        }
+
+        /** @return true if the response to this call is deferred */
+        public boolean isResponseDeferred() {
+            return deferred;
+        }
+
+        /**
+         * Send the response to a deferred call.
+         * @param value the return value of the call
+         * @throws IllegalStateException if the response is not deferred or
+         *         was already sent
+         */
+        public void sendResponse(Writable value) throws IOException {
+            markResponded();
+            connection.getServer().respond(this, value, null);
+        }
+
+        /**
+         * Send the failure of a deferred call.
+         * @param error the exception the call failed with
+         * @throws IllegalStateException if the response is not deferred or
+         *         was already sent
+         */
+        public void sendError(Throwable error) throws IOException {
+            markResponded();
+            connection.getServer().respond(this, null, error);
+        }
+
+        private synchronized void markResponded() {
+            if (!deferred) {
+                throw new IllegalStateException("Response not deferred for " + this);
+            }
+            if (responded) {
+                throw new IllegalStateException("Response already sent for " + this);
+            }
+            responded = true;
+        }
     }
 
     /** Listens on the socket. Creates jobs for the handler threads*/
@@ -421,13 +543,8 @@ public abstract class Server {
         private ServerSocketChannel acceptChannel = null; //the accept channel
         private Selector selector = null; //the selector that we use for the server
         private Reader[] readers = null;
-        private int currentReader = 0;
+        private Acceptor[] acceptors = null; // accept besides the listener
         private InetSocketAddress address; //the address we bind at
-        private Random rand = new Random();
-        private long lastCleanupRunTime = 0; //the last time when a cleanup connec-
-        //-tion (for idle connections) ran
-        private long cleanupInterval = 10000; //the minimum interval between
-        //two cleanup runs
         private int backlogLength = conf.getInt(
                 CommonConfigurationKeysPublic.IPC_SERVER_LISTEN_QUEUE_SIZE_KEY,
                 CommonConfigurationKeysPublic.IPC_SERVER_LISTEN_QUEUE_SIZE_DEFAULT);
@@ -438,6 +555,22 @@ public abstract class Server {
             acceptChannel = ServerSocketChannel.open();
             acceptChannel.configureBlocking(false);
 
+            // With more than one thread accepting, each has a socket of its
+            // own on the same port if the platform can share ports, or else
+            // they all accept on the one socket
+            final int acceptThreads = Math.max(1, conf.getInt(
+                    CommonConfigurationKeys.IPC_SERVER_LISTENER_THREADS_KEY,
+                    CommonConfigurationKeys.IPC_SERVER_LISTENER_THREADS_DEFAULT));
+            SocketOption<Boolean> reusePort = null;
+            if (acceptThreads > 1 && conf.getBoolean(
+                    CommonConfigurationKeys.IPC_SERVER_LISTENER_REUSEPORT_KEY,
+                    CommonConfigurationKeys.IPC_SERVER_LISTENER_REUSEPORT_DEFAULT)) {
+                reusePort = getReusePortOption(acceptChannel);
+                if (reusePort != null) {
+                    acceptChannel.setOption(reusePort, true);
+                }
+            }
+
             // Bind the server socket to the local host and port
             bind(acceptChannel.socket(), address, backlogLength, conf, portRangeConfig);
             port = acceptChannel.socket().getLocalPort(); //Could be an ephemeral port
@@ -453,13 +586,122 @@ public abstract class Server {
 
             // Register accepts on the server socket with the selector.
             acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+            acceptors = new Acceptor[acceptThreads - 1];
+            for (int i = 0; i < acceptors.length; i++) {
+                ServerSocketChannel channel = acceptChannel;
+                if (reusePort != null) {
+                    channel = ServerSocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(reusePort, true);
+                    channel.socket().bind(new InetSocketAddress(
+                            acceptChannel.socket().getInetAddress(), port), backlogLength);
+                }
+                acceptors[i] = new Acceptor(channel, channel != acceptChannel,
+                        "IPC Server acceptor #" + (i + 1) + " on " + port);
+            }
             this.setName("IPC Server listener on " + port);
             this.setDaemon(true);
         }
 
+        /** Accepts connections besides the listener, on a socket of its own
+         *  or on the listener's. */
+        private class Acceptor extends Thread {
+            private final ServerSocketChannel channel;
+            private final boolean ownChannel;
+            private final Selector acceptSelector;
+
+            Acceptor(ServerSocketChannel channel, boolean ownChannel, String name)
+                    throws IOException {
+                super(name);
+                this.channel = channel;
+                this.ownChannel = ownChannel;
+                this.acceptSelector = Selector.open();
+                channel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+                this.setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                LOG.info("Starting " + getName());
+                SERVER.set(Server.this);
+                try {
+                    while (running) {
+                        try {
+                            acceptSelector.select();
+                            Iterator<SelectionKey> iter =
+                                    acceptSelector.selectedKeys().iterator();
+                            while (iter.hasNext()) {
+                                SelectionKey key = iter.next();
+                                iter.remove();
+                                try {
+                                    if (key.isValid() && key.isAcceptable()) {
+                                        doAccept(key);
+                                    }
+                                } catch (IOException e) {
+                                }
+                            }
+                        } catch (OutOfMemoryError e) {
+                            // give some thread(s) a chance to finish, as the
+                            // listener does
+                            LOG.warn("Out of Memory in server select", e);
+                            try { Thread.sleep(60000); } catch (Exception ie) {}
+                        } catch (Exception e) {
+                            if (running) {
+                                LOG.warn(getName() + " caught an exception", e);
+                            }
+                        }
+                    }
+                } finally {
+                    try {
+                        acceptSelector.close();
+                        if (ownChannel) {
+                            channel.close();
+                        }
+                    } catch (IOException e) { }
+                }
+                LOG.info("Stopping " + getName());
+            }
+
+            void shutdown() {
+                assert !running;
+                acceptSelector.wakeup();
+                if (ownChannel) {
+                    try {
+                        channel.socket().close();
+                    } catch (IOException e) {
+                        LOG.info(getName() + ":Exception in closing listener socket. " + e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the requests of its connections.  A reader measures the
+         * fraction of the time it is busy reading, its load, so that new
+         * connections go to the readers least loaded.  With rebalancing on,
+         * a reader loaded far more than another hands its hottest connection
+         * over to it, as long as that lowers the higher of their loads.
+         *
+         * A reader never blocks on a full call queue.  A connection whose
+         * call cannot be queued, or that has too many calls outstanding,
+         * is paused: the reader stops selecting it for reading, so TCP pushes
+         * back on its client alone, and resumes it once there is room.
+         */
         private class Reader extends Thread {
-            private volatile boolean adding = false;
+            // channels being registered; there may be more than one with
+            // several acceptor threads
+            private final AtomicInteger adding = new AtomicInteger();
             private final Selector readSelector;
+            private final AtomicInteger connections = new AtomicInteger();
+            // connections handed over by other readers
+            private final Queue<Connection> handedOver =
+                    new ConcurrentLinkedQueue<Connection>();
+            private volatile double load;    // fraction of the time busy, smoothed
+            private long busyNanos;          // since the last sample
+            private long lastSample = System.nanoTime();
+            // connections whose reads are paused, only used by this thread
+            private final List<Connection> paused = new ArrayList<Connection>();
+            private volatile int numPaused;
 
             Reader(String name) throws IOException {
                 super(name);
@@ -467,6 +709,15 @@ public abstract class Server {
                 this.readSelector = Selector.open();
             }
 
+            /** @return the smoothed fraction of the time spent reading */
+            double getLoad() {
+                return load;
+            }
+
+            int getNumConnections() {
+                return connections.get();
+            }
+
             @Override
             public void run() {
                 LOG.info("Starting " + getName());
@@ -485,11 +736,15 @@ public abstract class Server {
                 while (running) {
                     SelectionKey key = null;
                     try {
-                        readSelector.select();
-                        while (adding) {
+                        // wake up now and then to keep the load up to date
+                        readSelector.select(LOAD_SAMPLE_INTERVAL);
+                        while (adding.get() > 0) {
                             this.wait(1000);
                         }
+                        takeHandedOver();
+                        resumePaused();
 
+                        final long start = System.nanoTime();
                         Iterator<SelectionKey> iter = readSelector.selectedKeys().iterator();
                         while (iter.hasNext()) {
                             key = iter.next();
@@ -501,6 +756,11 @@ public abstract class Server {
                             }
                             key = null;
                         }
+                        final long now = System.nanoTime();
+                        busyNanos += now - start;
+                        if (now - lastSample >= LOAD_SAMPLE_INTERVAL * 1000000L) {
+                            sampleLoad(now);
+                        }
                     } catch (InterruptedException e) {
                         if (running) {                      // unexpected -- log it
                             LOG.info(getName() + " unexpectedly interrupted", e);
@@ -511,6 +771,115 @@ public abstract class Server {
                 }
             }
 
+            private void sampleLoad(long now) {
+                final double busy = (double) busyNanos / (now - lastSample);
+                load = load * LOAD_DECAY + busy * (1 - LOAD_DECAY);
+                if (rebalanceReaders) {
+                    rebalance(now - lastSample);
+                }
+                busyNanos = 0;
+                lastSample = now;
+            }
+
+            /** Hand the hottest connection over to the least loaded reader,
+             *  if that lowers the load of the busier of the two. */
+            private void rebalance(long interval) {
+                Reader idlest = null;
+                for (Reader r : readers) {
+                    if (r != this && (idlest == null || r.load < idlest.load)) {
+                        idlest = r;
+                    }
+                }
+                SelectionKey hottest = null;
+                long hottestNanos = 0;
+                for (SelectionKey key : readSelector.keys()) {
+                    final Connection c = (Connection) key.attachment();
+                    if (c == null || !key.isValid() || c.paused) {
+                        continue;
+                    }
+                    if (c.busyNanos > hottestNanos) {
+                        hottest = key;
+                        hottestNanos = c.busyNanos;
+                    }
+                    c.busyNanos = 0;
+                }
+                if (idlest == null || hottest == null
+                        || load < REBALANCE_MIN_LOAD || idlest.load > load / 2) {
+                    return;
+                }
+                final double hottestLoad = (double) hottestNanos / interval;
+                if (idlest.load + hottestLoad >= load) {
+                    return;                    // would only move the hot spot
+                }
+                final Connection c = (Connection) hottest.attachment();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(getName() + ": handing " + c + " over to " + idlest.getName());
+                }
+                hottest.cancel();
+                connections.decrementAndGet();
+                c.reader = idlest;
+                idlest.connections.incrementAndGet();
+                idlest.handedOver.add(c);
+                idlest.readSelector.wakeup();
+            }
+
+            /** Stop reading from a connection until it has room for calls. */
+            void pause(SelectionKey key, Connection c) {
+                key.interestOps(0);
+                c.paused = true;
+                paused.add(c);
+                numPaused = paused.size();
+                pausedConnections.incrementAndGet();
+            }
+
+            /** Queue the calls left pending, and read again from the
+             *  connections that have room for calls. */
+            private void resumePaused() {
+                if (paused.isEmpty()) {
+                    return;
+                }
+                final Iterator<Connection> iter = paused.iterator();
+                while (iter.hasNext()) {
+                    final Connection c = iter.next();
+                    final SelectionKey key = c.channel.keyFor(readSelector);
+                    if (key != null && key.isValid()) {
+                        if (c.pendingCall != null) {
+                            if (!callQueue.offer(c.pendingCall)) {
+                                continue;
+                            }
+                            c.pendingCall = null;
+                        }
+                        if (c.mustPause()) {
+                            continue;
+                        }
+                        key.interestOps(SelectionKey.OP_READ);
+                    }                              // else closed meanwhile
+                    iter.remove();
+                    c.paused = false;
+                    pausedConnections.decrementAndGet();
+                }
+                numPaused = paused.size();
+            }
+
+            /** Wake the reader up if it may have connections to resume. */
+            void wakeupIfPaused() {
+                if (numPaused > 0) {
+                    readSelector.wakeup();
+                }
+            }
+
+            /** Register the connections handed over by other readers. */
+            private void takeHandedOver() {
+                Connection c;
+                while ((c = handedOver.poll()) != null) {
+                    try {
+                        c.channel.register(readSelector, SelectionKey.OP_READ, c);
+                    } catch (IOException e) {
+                        closeConnection(c);
+                    }
+                }
+            }
+
             /**
              * This gets reader into the state that waits for the new channel
              * to be registered with readSelector. If it was waiting in select()
@@ -519,7 +888,7 @@ public abstract class Server {
              * in while(adding) for finishAdd call
              */
             public void startAdd() {
-                adding = true;
+                adding.incrementAndGet();
                 readSelector.wakeup();
             }
 
@@ -529,7 +898,7 @@ public abstract class Server {
             }
 
             public synchronized void finishAdd() {
-                adding = false;
+                adding.decrementAndGet();
                 this.notify();
             }
 
@@ -543,51 +912,17 @@ public abstract class Server {
                 }
             }
         }
-        /** cleanup connections from connectionList. Choose a random range
-         * to scan and also have a limit on the number of the connections
-         * that will be cleanedup per run. The criteria for cleanup is the time
-         * for which the connection was idle. If 'force' is true then all
-         * connections will be looked at for the cleanup.
+        /** Close every connection that has been idle too long at once,
+         * regardless of the number of connections.
          */
-        private void cleanupConnections(boolean force) {
-            if (force || numConnections > thresholdIdleConnections) {
-                long currentTime = Time.now();
-                if (!force && (currentTime - lastCleanupRunTime) < cleanupInterval) {
-                    return;
-                }
-                int start = 0;
-                int end = numConnections - 1;
-                if (!force) {
-                    start = rand.nextInt() % numConnections;
-                    end = rand.nextInt() % numConnections;
-                    int temp;
-                    if (end < start) {
-                        temp = start;
-                        start = end;
-                        end = temp;
-                    }
-                }
-                int i = start;
-                int numNuked = 0;
-                while (i <= end) {
-                    Connection c;
-                    synchronized (connectionList) {
-                        try {
-                            c = connectionList.get(i);
-                        } catch (Exception e) {return;}
-                    }
-                    if (c.timedOut(currentTime)) {
-                        if (LOG.isDebugEnabled())
-                            LOG.debug(getName() + ": disconnecting client " + c.getHostAddress());
-                        closeConnection(c);
-                        numNuked++;
-                        end--;
-                        c = null;
-                        if (!force && numNuked == maxConnectionsToNuke) break;
-                    }
-                    else i++;
+        private void closeIdleConnections() {
+            final long currentTime = Time.now();
+            for (Connection c : connections.snapshot()) {
+                if (c.timedOut(currentTime)) {
+                    if (LOG.isDebugEnabled())
+                        LOG.debug(getName() + ": disconnecting client " + c.getHostAddress());
+                    closeConnection(c);
                 }
-                lastCleanupRunTime = Time.now();
             }
         }
 
@@ -595,6 +930,9 @@ public abstract class Server {
         public void run() {
             LOG.info(getName() + ": starting");
             SERVER.set(Server.this);
+            for (Acceptor acceptor : acceptors) {
+                acceptor.start();
+            }
             while (running) {
                 SelectionKey key = null;
                 try {
@@ -620,12 +958,11 @@ public abstract class Server {
                     // FIXME(liyinn): seem never could close connection
                     // since connection is not attach to the select key
                     closeCurrentConnection(key, e);
-                    cleanupConnections(true);
+                    closeIdleConnections();
                     try { Thread.sleep(60000); } catch (Exception ie) {}
                 } catch (Exception e) {
                     closeCurrentConnection(key, e);
                 }
-                cleanupConnections(false);
             }
             LOG.info("Stopping " + this.getName());
 
@@ -639,8 +976,8 @@ public abstract class Server {
                 acceptChannel= null;
 
                 // clean up all connections
-                while (!connectionList.isEmpty()) {
-                    closeConnection(connectionList.remove(0));
+                for (Connection c : connections.snapshot()) {
+                    closeConnection(c);
                 }
             }
         }
@@ -675,14 +1012,14 @@ public abstract class Server {
                     reader.startAdd();
                     SelectionKey readKey = reader.registerChannel(channel);
                     c = new Connection(readKey, channel, Time.now());
+                    c.reader = reader;
+                    reader.connections.incrementAndGet();
                     readKey.attach(c);
-                    synchronized (connectionList) {
-                        connectionList.add(numConnections, c);
-                        numConnections++;
-                    }
+                    c.index = connections.add(c);
+                    c.schedule(c.idleTimeout, maxIdleTime);
                     if (LOG.isDebugEnabled())
                         LOG.debug("Server connection from " + c.toString() +
-                                "; # active connections: " + numConnections +
+                                "; # active connections: " + connections.size() +
                                 "; # queued calls: " + callQueue.size());
                 } finally {
                     reader.finishAdd();
@@ -698,6 +1035,7 @@ public abstract class Server {
             }
             c.setLastContact(Time.now());
 
+            final long start = System.nanoTime();
             try {
                 count = c.readAndProcess();
             } catch (InterruptedException ieo) {
@@ -713,16 +1051,20 @@ public abstract class Server {
                         (e instanceof WrappedRpcServerException) ? null : e);
                 count = -1; //so that the (count < 0) block is executed
             }
+            c.busyNanos += System.nanoTime() - start;
             if (count < 0) {
                 if (LOG.isDebugEnabled())
                     LOG.debug(getName() + ": disconnecting client " +
                             c + ". Number of active connections: "+
-                            numConnections);
+                            connections.size());
                 closeConnection(c);
                 c = null;
             }
             else {
                 c.setLastContact(Time.now());
+                if (c.mustPause()) {
+                    c.reader.pause(key, c);
+                }
             }
         }
 
@@ -738,17 +1080,41 @@ public abstract class Server {
                     LOG.info(getName() + ":Exception in closing listener socket. " + e);
                 }
             }
+            for (Acceptor a : acceptors) {
+                a.shutdown();
+            }
             for (Reader r : readers) {
                 r.shutdown();
             }
         }
 
+        /** Wake the readers up that may have connections to resume. */
+        void wakeupPausedReaders() {
+            if (pausedConnections.get() > 0) {
+                for (Reader r : readers) {
+                    r.wakeupIfPaused();
+                }
+            }
+        }
+
         synchronized Selector getSelector() { return selector; }
-        // The method that will return the next reader to work with
-        // Simplistic implementation of round robin for now
+        // The method that will return the next reader to work with: the
+        // less loaded of two readers picked at random, or if their loads are
+        // close, the one with fewer connections
         Reader getReader() {
-            currentReader = (currentReader + 1) % readers.length;
-            return readers[currentReader];
+            if (readers.length == 1) {
+                return readers[0];
+            }
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final Reader a = readers[random.nextInt(readers.length)];
+            Reader b = readers[random.nextInt(readers.length - 1)];
+            if (b == a) {
+                b = readers[readers.length - 1];
+            }
+            if (Math.abs(a.getLoad() - b.getLoad()) > LOAD_TOLERANCE) {
+                return a.getLoad() < b.getLoad() ? a : b;
+            }
+            return a.getNumConnections() <= b.getNumConnections() ? a : b;
         }
     }
 
@@ -783,12 +1149,10 @@ public abstract class Server {
         }
 
         private void doRunLoop() {
-            long lastPurgeTime = 0;   // last check for old calls.
-
             while (running) {
                 try {
                     waitPending();     // If a channel is being registered, wait.
-                    writeSelector.select(PURGE_INTERVAL);
+                    writeSelector.select();
                     Iterator<SelectionKey> iter = writeSelector.selectedKeys().iterator();
                     while (iter.hasNext()) {
                         SelectionKey key = iter.next();
@@ -801,36 +1165,6 @@ public abstract class Server {
                             LOG.info(getName() + ": doAsyncWrite threw exception " + e);
                         }
                     }
-                    long now = Time.now();
-                    if (now < lastPurgeTime + PURGE_INTERVAL) {
-                        continue;
-                    }
-                    lastPurgeTime = now;
-                    //
-                    // If there were some calls that have not been sent out for a
-                    // long time, discard them.
-                    //
-                    if(LOG.isDebugEnabled()) {
-                        LOG.debug("Checking for old call responses.");
-                    }
-                    ArrayList<Call> calls;
-
-                    // get the list of channels from list of keys.
-                    synchronized (writeSelector.keys()) {
-                        calls = new ArrayList<Call>(writeSelector.keys().size());
-                        iter = writeSelector.keys().iterator();
-                        while (iter.hasNext()) {
-                            SelectionKey key = iter.next();
-                            Call call = (Call)key.attachment();
-                            if (call != null && key.channel() == call.connection.channel) {
-                                calls.add(call);
-                            }
-                        }
-                    }
-
-                    for(Call call : calls) {
-                        doPurge(call, now);
-                    }
                 } catch (OutOfMemoryError e) {
                     //
                     // we can run out of memory if we have too many threads
@@ -870,78 +1204,63 @@ public abstract class Server {
             }
         }
 
-        //
-        // Remove calls that have been pending in the responseQueue
-        // for a long time.
-        //
-        private void doPurge(Call call, long now) {
-            LinkedList<Call> responseQueue = call.connection.responseQueue;
-            synchronized (responseQueue) {
-                Iterator<Call> iter = responseQueue.listIterator(0);
-                while (iter.hasNext()) {
-                    call = iter.next();
-                    if (now > call.timestamp + PURGE_INTERVAL) {
-                        closeConnection(call.connection);
-                        break;
-                    }
-                }
-            }
-        }
-
-        // Processes one response. Returns true if there are no more pending
-        // data for this channel.
+        // Processes the responses queued for a channel. Returns true if there
+        // are no more pending data for this channel.
         //
         private boolean processResponse(LinkedList<Call> responseQueue,
                                         boolean inHandler) throws IOException {
             boolean error = true;
             boolean done = false;       // there is more data for this channel.
-            int numElements = 0;
             Call call = null;
             try {
                 synchronized (responseQueue) {
                     //
                     // If there are no items for this channel, then we are done
                     //
-                    numElements = responseQueue.size();
-                    if (numElements == 0) {
+                    if (responseQueue.isEmpty()) {
                         error = false;
                         return true;              // no more data for this channel.
                     }
-                    //
-                    // Extract the first call
-                    //
-                    call = responseQueue.removeFirst();
+                    call = responseQueue.getFirst();
                     SocketChannel channel = call.connection.channel;
                     if (LOG.isDebugEnabled()) {
                         LOG.debug(getName() + ": responding to " + call);
                     }
                     //
-                    // Send as much data as we can in the non-blocking fashion
+                    // Send as much data as we can in the non-blocking fashion,
+                    // with the responses ready for the channel in one write
                     //
-                    int numBytes = channelWrite(channel, call.rpcResponse);
+                    long numBytes = writeResponses(call.connection);
                     if (numBytes < 0) {
                         return true;
                     }
-                    if (!call.rpcResponse.hasRemaining()) {
-                        //Clear out the response buffer so it can be collected
-                        call.rpcResponse = null;
-                        call.connection.decRpcCount();
-                        if (numElements == 1) {    // last call fully processes.
-                            done = true;             // no more data for this channel.
-                        } else {
-                            done = false;            // more calls pending to be sent.
+                    //
+                    // Remove the calls written entirely
+                    //
+                    while (!responseQueue.isEmpty()
+                            && !responseQueue.getFirst().rpcResponse.hasRemaining()) {
+                        Call sent = responseQueue.removeFirst();
+                        //Return the response buffer to the pool
+                        responseBuffers.release(sent.rpcResponse);
+                        sent.rpcResponse = null;
+                        sent.connection.decRpcCount();
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(getName() + ": responded to " + sent);
                         }
+                    }
+                    if (responseQueue.isEmpty()) {
+                        done = true;             // no more data for this channel.
                         if (LOG.isDebugEnabled()) {
                             LOG.debug(getName() + ": responding to " + call
                                     + " Wrote " + numBytes + " bytes.");
                         }
                     } else {
                         //
-                        // If we were unable to write the entire response out, then
+                        // If we were unable to write all the responses out, then
                         // insert in Selector queue.
                         //
-                        call.connection.responseQueue.addFirst(call);
-
+                        call = responseQueue.getFirst();
+                        done = false;
                         if (inHandler) {
                             // set the serve time when the response has to be sent later
                             call.timestamp = Time.now();
@@ -952,6 +1271,9 @@ public abstract class Server {
                                 // to channel.register() complete.
                                 writeSelector.wakeup();
                                 channel.register(writeSelector, SelectionKey.OP_WRITE, call);
+                                // the queue was empty, so this is the oldest response
+                                call.connection.schedule(call.connection.purgeTimeout,
+                                        PURGE_INTERVAL);
                             } catch (ClosedChannelException e) {
                                 //Its ok. channel might be closed else where.
                                 done = true;
@@ -976,6 +1298,42 @@ public abstract class Server {
             return done;
         }
 
+        /**
+         * Write the responses queued for a connection, as many as fit in a
+         * buffer of NIO_BUFFER_LIMIT bytes, in a single gathering write.
+         * A response larger than that is written by itself, in chunks.
+         * The caller holds the lock of the response queue.
+         * @return the number of bytes written, or -1 at the end of stream
+         */
+        private long writeResponses(Connection connection) throws IOException {
+            final LinkedList<Call> responseQueue = connection.responseQueue;
+            final ByteBuffer first = responseQueue.getFirst().rpcResponse;
+            if (responseQueue.size() == 1 || first.remaining() >= NIO_BUFFER_LIMIT) {
+                return channelWrite(connection.channel, first);
+            }
+            ByteBuffer[] batch = connection.responseBatch;
+            if (batch == null) {
+                batch = connection.responseBatch = new ByteBuffer[MAX_RESPONSE_BATCH];
+            }
+            int count = 0;
+            long bytes = 0;
+            for (Call call : responseQueue) {
+                final int remaining = call.rpcResponse.remaining();
+                if (count == batch.length
+                        || (count > 0 && bytes + remaining > NIO_BUFFER_LIMIT)) {
+                    break;
+                }
+                batch[count++] = call.rpcResponse;
+                bytes += remaining;
+            }
+            try {
+                return count == 1 ? channelWrite(connection.channel, first)
+                        : channelWrite(connection.channel, batch, count);
+            } finally {
+                Arrays.fill(batch, 0, count, null);
+            }
+        }
+
         //
         // Enqueue a response from the application.
         //
@@ -1041,7 +1399,10 @@ public abstract class Server {
         private ByteBuffer data;
         private ByteBuffer dataLengthBuffer;
         private LinkedList<Call> responseQueue;
-        private volatile int rpcCount = 0; // number of outstanding rpcs
+        private ByteBuffer[] responseBatch;   // responses of a gathering write
+        private final AtomicInteger rpcCount = new AtomicInteger(); // outstanding rpcs
+        private Call pendingCall;         // read but not queued yet, queue full
+        private volatile boolean paused;  // not read from until there is room
         private long lastContact;
         private int dataLength;
         private Socket socket;
@@ -1051,6 +1412,25 @@ public abstract class Server {
         private int remotePort;
         private InetAddress addr;
 
+        private volatile Listener.Reader reader; // reads the connection
+        private volatile int index = -1;      // in the connection registry
+        // closes the connection once it has been idle too long
+        private final TimerWheel.Timeout idleTimeout = new TimerWheel.Timeout() {
+            @Override
+            public void run() {
+                checkIdle();
+            }
+        };
+        // closes the connection once a response could not be sent for long
+        private final TimerWheel.Timeout purgeTimeout = new TimerWheel.Timeout() {
+            @Override
+            public void run() {
+                checkPurge();
+            }
+        };
+        private long busyNanos;               // spent reading, by the reader
+        private volatile boolean closed;      // set before its timeouts are cancelled
+
         IpcConnectionContextProto connectionContext;
         String protocolName;
         SaslServer saslServer;
@@ -1060,7 +1440,6 @@ public abstract class Server {
         private ByteBuffer unwrappedDataLengthBuffer;
         private int serviceClass;
 
-        private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
 
         private boolean sentNegotiate = false;
         private boolean useWrap = false;
@@ -1101,6 +1480,11 @@ public abstract class Server {
             return hostAddress;
         }
 
+        /** @return the server the connection is to */
+        Server getServer() {
+            return Server.this;
+        }
+
         public InetAddress getHostInetAddress() {
             return addr;
         }
@@ -1115,17 +1499,26 @@ public abstract class Server {
 
         /* Return true if the connection has no outstanding rpc */
         private boolean isIdle() {
-            return rpcCount == 0;
+            return rpcCount.get() == 0;
         }
 
         /* Decrement the outstanding RPC count */
         private void decRpcCount() {
-            rpcCount--;
+            rpcCount.decrementAndGet();
+            if (paused) {
+                reader.wakeupIfPaused();
+            }
         }
 
         /* Increment the outstanding RPC count */
         private void incRpcCount() {
-            rpcCount++;
+            rpcCount.incrementAndGet();
+        }
+
+        /* Return true if no more requests should be read for now */
+        private boolean mustPause() {
+            return pendingCall != null
+                    || (maxOutstandingCalls > 0 && rpcCount.get() >= maxOutstandingCalls);
         }
 
         private boolean timedOut(long currentTime) {
@@ -1134,6 +1527,62 @@ public abstract class Server {
             return false;
         }
 
+        /* Close the connection if it has been idle too long and there are
+         * enough connections, or else check again when that may be */
+        private void checkIdle() {
+            if (closed) {
+                return;
+            }
+            final long currentTime = Time.now();
+            if (!isIdle() || connections.size() <= thresholdIdleConnections) {
+                schedule(idleTimeout, maxIdleTime);
+            } else if (!timedOut(currentTime)) {
+                schedule(idleTimeout, lastContact + maxIdleTime + 1 - currentTime);
+            } else if (!countIdleClose(currentTime)) {
+                schedule(idleTimeout,
+                        idleCloseWindowStart + CLEANUP_INTERVAL - currentTime);
+            } else {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Disconnecting idle client " + getHostAddress());
+                closeConnection(this);
+            }
+        }
+
+        /* Close the connection if a response has waited too long to be
+         * sent, or else check again when the oldest one will have */
+        private void checkPurge() {
+            if (closed) {
+                return;
+            }
+            final long currentTime = Time.now();
+            synchronized (responseQueue) {
+                long oldest = Long.MAX_VALUE;
+                for (Call call : responseQueue) {
+                    oldest = Math.min(oldest, call.timestamp);
+                }
+                if (oldest == Long.MAX_VALUE) {
+                    return;                     // all sent meanwhile
+                }
+                if (currentTime <= oldest + Responder.PURGE_INTERVAL) {
+                    schedule(purgeTimeout,
+                            oldest + Responder.PURGE_INTERVAL + 1 - currentTime);
+                    return;
+                }
+            }
+            closeConnection(this);
+        }
+
+        /**
+         * Schedule a timeout of this connection, unless it is closed: a
+         * timeout scheduled as the connection is closed is cancelled again.
+         */
+        void schedule(TimerWheel.Timeout timeout, long delay) {
+            timer.schedule(timeout, delay);
+            if (closed) {
+                timer.cancel(timeout);
+            }
+        }
+
         private void checkDataLength(int dataLength) throws IOException {
             if (dataLength < 0) {
                 String error = "Unexpected data length " + dataLength +
@@ -1205,7 +1654,7 @@ public abstract class Server {
                     dataLengthBuffer.flip();
                     dataLength = dataLengthBuffer.getInt();
                     checkDataLength(dataLength);
-                    data = ByteBuffer.allocate(dataLength);
+                    data = requestBuffers.take(dataLength);
                 }
 
                 count = channelRead(channel, data);
@@ -1214,8 +1663,9 @@ public abstract class Server {
                     dataLengthBuffer.clear();
                     data.flip();
                     boolean isHeaderRead = connectionContextRead;
-                    processOneRpc(data.array());
+                    final ByteBuffer request = data;
                     data = null;
+                    processOneRpc(request);
                     if (!isHeaderRead) {
                         continue;
                     }
@@ -1235,13 +1685,11 @@ public abstract class Server {
         private void setupBadVersionResponse(int clientVersion) throws IOException {
             String errMsg = "Server IPC version " + CURRENT_VERSION +
                     " cannot communicate with client version " + clientVersion;
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
             if (clientVersion >= 9) {
                 // Versions >>9  understand the normal response
                 Call fakeCall = new Call(-1, RpcConstants.INVALID_RETRY_COUNT, null,
                         this);
-                setupResponse(buffer, fakeCall,
+                setupResponse(fakeCall,
                         RpcStatusProto.FATAL, RpcErrorCodeProto.FATAL_VERSION_MISMATCH,
                         null, VersionMismatch.class.getName(), errMsg);
                 responder.doRespond(fakeCall);
@@ -1320,7 +1768,7 @@ public abstract class Server {
                 if (unwrappedData.remaining() == 0) {
                     unwrappedDataLengthBuffer.clear();
                     unwrappedData.flip();
-                    processOneRpc(unwrappedData.array());
+                    processOneRpc(unwrappedData);
                     unwrappedData = null;
                 }
             }
@@ -1337,13 +1785,16 @@ public abstract class Server {
          *         Listener thread
          * @throws InterruptedException
          */
-        private void processOneRpc(byte[] buf)
+        private void processOneRpc(ByteBuffer buf)
                 throws IOException, WrappedRpcServerException, InterruptedException {
             int callId = -1;
             int retry = RpcConstants.INVALID_RETRY_COUNT;
+            boolean queued = false;
             try {
-                final DataInputStream dis =
-                        new DataInputStream(new ByteArrayInputStream(buf));
+                // the request wrapper may keep slices of buf rather than
+                // copying the request out of it
+                final DataInputBuffer dis = new DataInputBuffer();
+                dis.reset(buf.array(), buf.limit());
                 final RpcRequestHeaderProto header =
                         decodeProtobufFromStream(RpcRequestHeaderProto.newBuilder(), dis);
                 callId = header.getCallId();
@@ -1360,16 +1811,20 @@ public abstract class Server {
                             RpcErrorCodeProto.FATAL_INVALID_RPC_HEADER,
                             "Connection context not established");
                 } else {
-                    processRpcRequest(header, dis);
+                    queued = processRpcRequest(header, dis, buf);
                 }
             } catch (WrappedRpcServerException wrse) { // inform client of error
                 Throwable ioe = wrse.getCause();
                 final Call call = new Call(callId, retry, null, this);
-                setupResponse(authFailedResponse, call,
+                setupResponse(call,
                         RpcStatusProto.FATAL, wrse.getRpcErrorCodeProto(), null,
                         ioe.getClass().getName(), ioe.getMessage());
                 responder.doRespond(call);
                 throw wrse;
+            } finally {
+                if (!queued) {
+                    requestBuffers.release(buf);
+                }
             }
         }
 
@@ -1410,10 +1865,14 @@ public abstract class Server {
          * @throws WrappedRpcServerException - due to fatal rpc layer issues such
          *   as invalid header or deserialization error. In this case a RPC fatal
          *   status response will later be sent back to client.
+         * @return true if the call was queued with buf, which is then released
+         *   once the call is served; false if the caller still owns buf
+         * @throws IOException - failed to refuse a throttled call
          * @throws InterruptedException
          */
-        private void processRpcRequest(RpcRequestHeaderProto header,
-                                       DataInputStream dis) throws WrappedRpcServerException,
+        private boolean processRpcRequest(RpcRequestHeaderProto header,
+                                       DataInputStream dis, ByteBuffer buf)
+                throws WrappedRpcServerException, IOException,
                 InterruptedException {
             Class<? extends Writable> rpcRequestClass =
                     getRpcRequestWrapper(header.getRpcKind());
@@ -1441,8 +1900,43 @@ public abstract class Server {
             Call call = new Call(header.getCallId(), header.getRetryCount(),
                     rpcRequest, this, ProtoUtil.convert(header.getRpcKind()), header
                     .getClientId().toByteArray());
-            callQueue.put(call);              // queue the call; maybe blocked here
+            if (header.hasTimeout()) {
+                call.deadline = call.timestamp + header.getTimeout();
+            }
             incRpcCount();  // Increment the rpc count
+            if (rateLimiter != null) {
+                final long wait = rateLimiter.acquire(call, protocolName);
+                if (wait > 0) {
+                    // refuse the call before it takes any room in the queue
+                    rpcMetrics.incrRpcThrottled();
+                    synchronized (responseQueue) {
+                        setupResponse(call, RpcStatusProto.ERROR,
+                                RpcErrorCodeProto.ERROR_THROTTLED, null,
+                                RpcThrottledException.class.getName(),
+                                "Over the rate of calls, retry in " + wait + " ms");
+                        responder.doRespond(call);
+                    }
+                    return false;
+                }
+            }
+            if (retryCache != null) {
+                final RetryCache.Entry entry = retryCache.lookup(call, Time.now());
+                if (entry != null) {
+                    // a retry: answer it as the earlier call was, or will be
+                    rpcMetrics.incrRpcRetryCacheHits();
+                    if (entry != RetryCache.PENDING) {
+                        respond(call, entry.getValue(), entry.getError());
+                    }
+                    return false;
+                }
+            }
+            call.requestBuffer = buf;
+            if (pendingCall != null) {
+                callQueue.put(call);          // not expected, reads are paused
+            } else if (!callQueue.offer(call)) {
+                pendingCall = call;           // the reader pauses the connection
+            }
+            return true;
         }
 
 
@@ -1536,86 +2030,145 @@ public abstract class Server {
         public void run() {
             LOG.debug(getName() + ": starting");
             SERVER.set(Server.this);
-            ByteArrayOutputStream buf =
-                    new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
             while (running) {
                 try {
                     final Call call = callQueue.take(); // pop the queue; maybe blocked here
+                    listener.wakeupPausedReaders();
                     if (LOG.isDebugEnabled()) {
                         LOG.debug(getName() + ": " + call + " for RpcKind " + call.rpcKind);
                     }
-                    String errorClass = null;
-                    String error = null;
-                    RpcStatusProto returnStatus = RpcStatusProto.SUCCESS;
-                    RpcErrorCodeProto detailedErr = null;
-                    Writable value = null;
+                    handle(call);
+                } catch (InterruptedException e) {
+                    if (running) {                          // unexpected -- log it
+                        LOG.info(getName() + " unexpectedly interrupted", e);
+                    }
+                } catch (Exception e) {
+                    LOG.info(getName() + " caught an exception", e);
+                }
+            }
+            LOG.debug(getName() + ": exiting");
+        }
 
-                    CurCall.set(call);
+    }
+
+    /** Serve a call and respond to it, on the current thread. */
+    private void handle(Call call) throws IOException {
+        Writable value = null;
+        Throwable error = null;
+
+        CurCall.set(call);
+        try {
+            final long now = Time.now();
+            if (call.isExpired(now)) {
+                // the client is not waiting any more; don't waste
+                // the handler on it
+                rpcMetrics.incrRpcDeadlineExceeded();
+                throw new RpcDeadlineExceededException("Call expired "
+                        + (now - call.timestamp) + " ms after it was received");
+            }
+            if (queueDelay != null && queueDelay.reject(now - call.timestamp, now)) {
+                rpcMetrics.incrRpcOverloaded();
+                throw new RpcServerOverloadedException("Server overloaded, call waited "
+                        + (now - call.timestamp) + " ms in the queue");
+            }
+            value = call(call.rpcKind, call.connection.protocolName, call.rpcRequest,
+                    call.timestamp);
+        } catch (Throwable e) {
+            error = e;
+        }
+        CurCall.set(null);
+        // the request is deserialized by now
+        requestBuffers.release(call.requestBuffer);
+        call.requestBuffer = null;
+        if (call.isResponseDeferred()) {
+            // the response is sent when the call completes, unless
+            // the method failed before it got that far
+            if (error != null) {
+                try {
+                    call.sendError(error);
+                } catch (IllegalStateException e) {
+                    LOG.warn(Thread.currentThread().getName() + ", call " + call
+                            + " failed after its response was sent", error);
+                }
+            }
+            return;
+        }
+        respond(call, value, error);
+    }
+
+    /** Takes the calls off the queue and serves each on a thread of its own,
+     *  with at most maxConcurrentCalls calls served at once. */
+    private class CallDispatcher extends Thread {
+        CallDispatcher() {
+            this.setDaemon(true);
+            this.setName("IPC Server call dispatcher on " + port);
+        }
+
+        @Override
+        public void run() {
+            LOG.debug(getName() + ": starting");
+            while (running) {
+                try {
+                    concurrentCalls.acquire();
+                    final Call call;
                     try {
-                        value = call(call.rpcKind, call.connection.protocolName, call.rpcRequest,
-                                call.timestamp);
-                    } catch (Throwable e) {
-                        if (e instanceof UndeclaredThrowableException) {
-                            e = e.getCause();
-                        }
-                        String logMsg = getName() + ", call " + call + ": error: " + e;
-                        if (e instanceof RuntimeException || e instanceof Error) {
-                            // These exception types indicate something is probably wrong
-                            // on the server side, as opposed to just a normal exceptional
-                            // result.
-                            LOG.warn(logMsg, e);
-                        } else if (exceptionsHandler.isTerse(e.getClass())) {
-                            // Don't log the whole stack trace of these exceptions.
-                            // Way too noisy!
-                            LOG.info(logMsg);
-                        } else {
-                            LOG.info(logMsg, e);
-                        }
-                        if (e instanceof RpcServerException) {
-                            RpcServerException rse = ((RpcServerException)e);
-                            returnStatus = rse.getRpcStatusProto();
-                            detailedErr = rse.getRpcErrorCodeProto();
-                        } else {
-                            returnStatus = RpcStatusProto.ERROR;
-                            detailedErr = RpcErrorCodeProto.ERROR_APPLICATION;
-                        }
-                        errorClass = e.getClass().getName();
-                        error = StringUtils.stringifyException(e);
-                        // Remove redundant error class name from the beginning of the stack trace
-                        String exceptionHdr = errorClass + ": ";
-                        if (error.startsWith(exceptionHdr)) {
-                            error = error.substring(exceptionHdr.length());
-                        }
+                        call = callQueue.take();
+                    } catch (InterruptedException e) {
+                        concurrentCalls.release();
+                        throw e;
                     }
-                    CurCall.set(null);
-                    synchronized (call.connection.responseQueue) {
-                        // setupResponse() needs to be sync'ed together with
-                        // responder.doResponse() since setupResponse may use
-                        // SASL to encrypt response data and SASL enforces
-                        // its own message ordering.
-                        setupResponse(buf, call, returnStatus, detailedErr,
-                                value, errorClass, error);
-
-                        // Discard the large buf and reset it back to smaller size
-                        // to free up heap
-                        if (buf.size() > maxRespSize) {
-                            LOG.warn("Large response size " + buf.size() + " for call "
-                                    + call.toString());
-                            buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
-                        }
-                        responder.doRespond(call);
+                    listener.wakeupPausedReaders();
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(getName() + ": " + call + " for RpcKind " + call.rpcKind);
                     }
+                    callExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            SERVER.set(Server.this);
+                            try {
+                                handle(call);
+                            } catch (Throwable e) {
+                                LOG.info(Thread.currentThread().getName()
+                                        + " caught an exception", e);
+                            } finally {
+                                SERVER.remove();
+                                concurrentCalls.release();
+                            }
+                        }
+                    });
                 } catch (InterruptedException e) {
                     if (running) {                          // unexpected -- log it
                         LOG.info(getName() + " unexpectedly interrupted", e);
                     }
-                } catch (Exception e) {
-                    LOG.info(getName() + " caught an exception", e);
+                } catch (RejectedExecutionException e) {
+                    if (running) {
+                        LOG.warn(getName() + " could not start a call", e);
+                    }
                 }
             }
             LOG.debug(getName() + ": exiting");
         }
+    }
 
+    /**
+     * @return a factory of virtual threads if the JVM has them, or else of
+     *         daemon threads
+     */
+    private static ThreadFactory newCallThreadFactory(String name) {
+        try {
+            // Thread.ofVirtual().name(name, 0).factory(), from Java 21 on
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, name, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            LOG.debug("No virtual threads, serving calls on platform threads", e);
+            return new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat(name + "%d")
+                    .build();
+        }
     }
 
     protected Server(String bindAddress, int port,
@@ -1671,9 +2224,43 @@ public abstract class Server {
                     CommonConfigurationKeys.IPC_SERVER_HANDLER_QUEUE_SIZE_KEY,
                     CommonConfigurationKeys.IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT);
         }
+        this.requestBuffers = new BufferPool(MIN_REQUEST_BUFFER_SIZE,
+                Math.max(MIN_REQUEST_BUFFER_SIZE, Math.min(maxDataLength, MAX_REQUEST_BUFFER_SIZE)),
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_SIZE_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_SIZE_DEFAULT),
+                false);
+        this.rebalanceReaders = conf.getBoolean(
+                CommonConfigurationKeys.IPC_SERVER_READER_REBALANCE_KEY,
+                CommonConfigurationKeys.IPC_SERVER_READER_REBALANCE_DEFAULT);
+        this.maxOutstandingCalls = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_CONNECTION_MAX_OUTSTANDING_CALLS_KEY,
+                CommonConfigurationKeys.IPC_SERVER_CONNECTION_MAX_OUTSTANDING_CALLS_DEFAULT);
+        final int queueDelayTarget = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_CODEL_TARGET_KEY,
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_CODEL_TARGET_DEFAULT);
+        this.queueDelay = queueDelayTarget <= 0 ? null : new QueueDelayController(
+                queueDelayTarget,
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_CODEL_INTERVAL_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_CODEL_INTERVAL_DEFAULT),
+                Time.now());
+        this.rateLimiter = RateLimiter.create(conf);
+        final int retryCacheSize = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_RETRYCACHE_SIZE_KEY,
+                CommonConfigurationKeys.IPC_SERVER_RETRYCACHE_SIZE_DEFAULT);
+        this.retryCache = retryCacheSize <= 0 ? null : new RetryCache(retryCacheSize,
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_RETRYCACHE_EXPIRY_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_RETRYCACHE_EXPIRY_DEFAULT));
+        this.maxConcurrentCalls = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_MAX_CONCURRENT_CALLS_KEY,
+                CommonConfigurationKeys.IPC_SERVER_MAX_CONCURRENT_CALLS_DEFAULT);
         this.maxRespSize = conf.getInt(
                 CommonConfigurationKeys.IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY,
                 CommonConfigurationKeys.IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT);
+        this.responseBuffers = new BufferPool(MIN_RESPONSE_BUFFER_SIZE,
+                Math.max(MIN_RESPONSE_BUFFER_SIZE, maxRespSize),
+                conf.getInt(CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_SIZE_KEY,
+                        CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_SIZE_DEFAULT),
+                true);
         if (numReaders != -1) {
             this.readThreads = numReaders;
         } else {
@@ -1681,7 +2268,7 @@ public abstract class Server {
                     CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_KEY,
                     CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_DEFAULT);
         }
-        this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize);
+        this.callQueue  = createCallQueue(maxQueueSize, conf);
         this.maxIdleTime = 2 * conf.getInt(
                 CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY,
                 CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_DEFAULT);
@@ -1695,6 +2282,8 @@ public abstract class Server {
         // Start the listener here and let it bind to the port
         listener = new Listener();
         this.port = listener.getAddress().getPort();
+        this.timer = new TimerWheel("IPC Server timer on " + port,
+                TIMER_TICK, TIMER_WHEEL_SIZE);
         this.rpcMetrics = RpcMetrics.create(this);
         this.tcpNoDelay = conf.getBoolean(
                 CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_KEY,
@@ -1703,17 +2292,139 @@ public abstract class Server {
         // Create the responder here
         responder = new Responder();
 
-        this.exceptionsHandler.addTerseExceptions(StandbyException.class);
+        this.exceptionsHandler.addTerseExceptions(StandbyException.class,
+                RpcDeadlineExceededException.class,
+                RpcServerOverloadedException.class,
+                RpcThrottledException.class);
+    }
+
+    private static CallQueue createCallQueue(int capacity, Option conf) {
+        Class<?> queueClass = conf.getClass(
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_IMPL_KEY,
+                FifoCallQueue.class);
+        if (!CallQueue.class.isAssignableFrom(queueClass)) {
+            throw new IllegalArgumentException(queueClass + " is not a CallQueue");
+        }
+        try {
+            return (CallQueue) queueClass
+                    .getConstructor(int.class, Option.class)
+                    .newInstance(capacity, conf);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Cannot create call queue "
+                    + queueClass.getName(), e.getCause());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot create call queue "
+                    + queueClass.getName(), e);
+        }
+    }
+
+    /* Count a connection closed for being idle; false if maxConnectionsToNuke
+     * were in the last CLEANUP_INTERVAL already */
+    private boolean countIdleClose(long now) {
+        if (now - idleCloseWindowStart >= CLEANUP_INTERVAL) {
+            idleCloseWindowStart = now;
+            idleClosed = 0;
+        }
+        if (idleClosed >= maxConnectionsToNuke) {
+            return false;
+        }
+        idleClosed++;
+        return true;
     }
 
     private void closeConnection(Connection connection) {
-        synchronized (connectionList) {
-            if (connectionList.remove(connection))
-                numConnections--;
+        connection.closed = true;
+        timer.cancel(connection.idleTimeout);
+        timer.cancel(connection.purgeTimeout);
+        if (connections.remove(connection.index, connection)
+                && connection.reader != null) {
+            connection.reader.connections.decrementAndGet();
         }
         connection.close();
     }
 
+    /**
+     * Respond to a call with its return value, or with the exception it
+     * failed with.
+     */
+    private void respond(Call call, Writable value, Throwable e)
+            throws IOException {
+        String errorClass = null;
+        String error = null;
+        RpcStatusProto returnStatus = RpcStatusProto.SUCCESS;
+        RpcErrorCodeProto detailedErr = null;
+        if (e != null) {
+            if (e instanceof UndeclaredThrowableException) {
+                e = e.getCause();
+            }
+            String logMsg = Thread.currentThread().getName() + ", call " + call
+                    + ": error: " + e;
+            if (e instanceof RuntimeException || e instanceof Error) {
+                // These exception types indicate something is probably wrong
+                // on the server side, as opposed to just a normal exceptional
+                // result.
+                LOG.warn(logMsg, e);
+            } else if (exceptionsHandler.isTerse(e.getClass())) {
+                // Don't log the whole stack trace of these exceptions.
+                // Way too noisy!
+                LOG.info(logMsg);
+            } else {
+                LOG.info(logMsg, e);
+            }
+            if (e instanceof RpcServerException) {
+                RpcServerException rse = ((RpcServerException)e);
+                returnStatus = rse.getRpcStatusProto();
+                detailedErr = rse.getRpcErrorCodeProto();
+            } else {
+                returnStatus = RpcStatusProto.ERROR;
+                detailedErr = RpcErrorCodeProto.ERROR_APPLICATION;
+            }
+            errorClass = e.getClass().getName();
+            error = StringUtils.stringifyException(e);
+            // Remove redundant error class name from the beginning of the stack trace
+            String exceptionHdr = errorClass + ": ";
+            if (error.startsWith(exceptionHdr)) {
+                error = error.substring(exceptionHdr.length());
+            }
+        }
+        try {
+            synchronized (call.connection.responseQueue) {
+                // setupResponse() needs to be sync'ed together with
+                // responder.doResponse() since setupResponse may use
+                // SASL to encrypt response data and SASL enforces
+                // its own message ordering.
+                setupResponse(call, returnStatus, detailedErr,
+                        value, errorClass, error);
+
+                if (call.rpcResponse.remaining() > maxRespSize) {
+                    LOG.warn("Large response size " + call.rpcResponse.remaining()
+                            + " for call " + call.toString());
+                }
+                responder.doRespond(call);
+            }
+        } finally {
+            // record the outcome even if the client is gone: its retries,
+            // perhaps over another connection, are waiting for it
+            final RetryCache.Entry entry = call.retryEntry;
+            if (entry != null) {
+                call.retryEntry = null;
+                // a call failed by the server itself was not served; forget it
+                // so that its next retry is
+                final List<Call> retries = e instanceof RpcServerException
+                        ? retryCache.remove(entry)
+                        : retryCache.complete(entry, value, e, Time.now());
+                for (Call retry : retries) {
+                    try {
+                        respond(retry, value, e);
+                    } catch (IOException ioe) {
+                        LOG.info(Thread.currentThread().getName()
+                                + ": unable to respond to " + retry, ioe);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Setup response for the IPC Call.
      *
@@ -1725,12 +2436,10 @@ public abstract class Server {
      * @param error error message, if the call failed
      * @throws IOException
      */
-    private void setupResponse(ByteArrayOutputStream responseBuf,
-                               Call call, RpcStatusProto status, RpcErrorCodeProto erCode,
-                               Writable rv, String errorClass, String error)
+    private void setupResponse(Call call, RpcStatusProto status,
+                               RpcErrorCodeProto erCode, Writable rv,
+                               String errorClass, String error)
             throws IOException {
-        responseBuf.reset();
-        DataOutputStream out = new DataOutputStream(responseBuf);
         RpcResponseHeaderProto.Builder headerBuilder =
                 RpcResponseHeaderProto.newBuilder();
         headerBuilder.setClientId(ByteString.copyFrom(call.clientId));
@@ -1739,34 +2448,28 @@ public abstract class Server {
         headerBuilder.setStatus(status);
         headerBuilder.setServerIpcVersionNum(CURRENT_VERSION);
 
+        final ByteBufferOutputStream responseBuf;
         if (status == RpcStatusProto.SUCCESS) {
             RpcResponseHeaderProto header = headerBuilder.build();
             final int headerLen = header.getSerializedSize();
             int fullLength  = CodedOutputStream.computeRawVarint32Size(headerLen) +
                     headerLen;
+            // the length of other values is only known once they are written
+            fullLength += rv instanceof ProtobufRpcEngine.RpcWrapper
+                    ? ((ProtobufRpcEngine.RpcWrapper) rv).getLength()
+                    : INITIAL_RESP_BUF_SIZE;
+            responseBuf = new ByteBufferOutputStream(responseBuffers, 4 + fullLength);
             try {
-                if (rv instanceof ProtobufRpcEngine.RpcWrapper) {
-                    ProtobufRpcEngine.RpcWrapper resWrapper =
-                            (ProtobufRpcEngine.RpcWrapper) rv;
-                    fullLength += resWrapper.getLength();
-                    out.writeInt(fullLength);
-                    header.writeDelimitedTo(out);
-                    rv.write(out);
-                } else { // Have to serialize to buffer to get len
-                    final DataOutputBuffer buf = new DataOutputBuffer();
-                    rv.write(buf);
-                    byte[] data = buf.getData();
-                    fullLength += buf.getLength();
-                    out.writeInt(fullLength);
-                    header.writeDelimitedTo(out);
-                    out.write(data, 0, buf.getLength());
-                }
+                DataOutputStream out = new DataOutputStream(responseBuf);
+                out.writeInt(0);    // the length, set once known
+                header.writeDelimitedTo(out);
+                rv.write(out);
             } catch (Throwable t) {
+                responseBuf.release();
                 LOG.warn("Error serializing call response for call " + call, t);
                 // Call back to same function - this is OK since the
-                // buffer is reset at the top, and since status is changed
-                // to ERROR it won't infinite loop.
-                setupResponse(responseBuf, call, RpcStatusProto.ERROR,
+                // status is changed to ERROR it won't infinite loop.
+                setupResponse(call, RpcStatusProto.ERROR,
                         RpcErrorCodeProto.ERROR_SERIALIZING_RESPONSE,
                         null, t.getClass().getName(),
                         StringUtils.stringifyException(t));
@@ -1780,10 +2483,14 @@ public abstract class Server {
             int headerLen = header.getSerializedSize();
             final int fullLength  =
                     CodedOutputStream.computeRawVarint32Size(headerLen) + headerLen;
-            out.writeInt(fullLength);
+            responseBuf = new ByteBufferOutputStream(responseBuffers, 4 + fullLength);
+            DataOutputStream out = new DataOutputStream(responseBuf);
+            out.writeInt(0);
             header.writeDelimitedTo(out);
         }
-        call.setResponse(ByteBuffer.wrap(responseBuf.toByteArray()));
+        final ByteBuffer response = responseBuf.getBuffer();
+        response.putInt(0, response.remaining() - 4);
+        call.setResponse(response);
     }
 
     public Option getConf() {
@@ -1795,8 +2502,17 @@ public abstract class Server {
 
     /** Starts the service.  Must be called before any calls will be handled. */
     public synchronized void start() {
+        timer.start();
         responder.start();
         listener.start();
+        if (maxConcurrentCalls > 0) {
+            concurrentCalls = new Semaphore(maxConcurrentCalls);
+            callExecutor = Executors.newCachedThreadPool(
+                    newCallThreadFactory("IPC Server call on " + port + " #"));
+            callDispatcher = new CallDispatcher();
+            callDispatcher.start();
+            return;
+        }
         handlers = new Handler[handlerCount];
 
         for (int i = 0; i < handlerCount; i++) {
@@ -1816,9 +2532,14 @@ public abstract class Server {
                 }
             }
         }
+        if (callDispatcher != null) {
+            callDispatcher.interrupt();
+            callExecutor.shutdownNow();
+        }
         listener.interrupt();
         listener.doStop();
         responder.interrupt();
+        timer.stop();
         notifyAll();
         if (this.rpcMetrics != null) {
             this.rpcMetrics.shutdown();
@@ -1873,7 +2594,7 @@ public abstract class Server {
      * @return the number of open rpc connections
      */
     public int getNumOpenConnections() {
-        return numConnections;
+        return connections.size();
     }
 
     /**
@@ -1905,7 +2626,37 @@ public abstract class Server {
      * done in chunks of this size. Most RPC requests and responses would be
      * be smaller.
      */
-    private static int NIO_BUFFER_LIMIT = 8*1024; //should not be more than 64KB.
+    static int NIO_BUFFER_LIMIT = 8*1024; //should not be more than 64KB.
+
+    /** Sizes of the pooled buffers requests are read into; larger requests
+     *  get buffers of their own. */
+    private static final int MIN_REQUEST_BUFFER_SIZE = 256;
+    private static final int MAX_REQUEST_BUFFER_SIZE = 1024 * 1024;
+
+    /** Size of the smallest pooled buffers responses are written into;
+     *  responses above the maximum size get buffers of their own. */
+    private static final int MIN_RESPONSE_BUFFER_SIZE = 256;
+
+    /** Msecs between samples of the load of the readers, the decay of the
+     *  load at each sample, and the difference in load under which readers
+     *  are told apart by their number of connections. */
+    private static final int LOAD_SAMPLE_INTERVAL = 1000;
+    private static final double LOAD_DECAY = 0.5;
+    private static final double LOAD_TOLERANCE = 0.05;
+    /** Load over which a reader hands connections over to idler readers. */
+    private static final double REBALANCE_MIN_LOAD = 0.5;
+
+    /** Msecs in a tick of the timer wheel of the connections, and its
+     *  number of ticks: the timeouts are on time within a tick, and a turn
+     *  of the wheel covers the usual idle times. */
+    private static final int TIMER_TICK = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    /** Msecs over which at most maxConnectionsToNuke idle connections are
+     *  closed. */
+    private static final int CLEANUP_INTERVAL = 10000;
+
+    /** The most responses written to a connection in one write. */
+    private static final int MAX_RESPONSE_BATCH = 64;
 
     /**
      * This is a wrapper around {@link WritableByteChannel#write(ByteBuffer)}.
@@ -1929,6 +2680,20 @@ public abstract class Server {
     }
 
 
+    /**
+     * This is a wrapper around
+     * {@link GatheringByteChannel#write(ByteBuffer[], int, int)} for buffers
+     * of at most NIO_BUFFER_LIMIT bytes in all.
+     */
+    private long channelWrite(GatheringByteChannel channel,
+                              ByteBuffer[] buffers, int length) throws IOException {
+        long count = channel.write(buffers, 0, length);
+        if (count > 0) {
+            rpcMetrics.incrSentBytes((int) count);
+        }
+        return count;
+    }
+
     /**
      * This is a wrapper around {@link ReadableByteChannel#read(ByteBuffer)}.
      * If the amount of data is large, it writes to channel in smaller chunks.
@@ -1956,7 +2721,7 @@ public abstract class Server {
      * @see #channelRead(ReadableByteChannel, ByteBuffer)
      * @see #channelWrite(WritableByteChannel, ByteBuffer)
      */
-    private static int channelIO(ReadableByteChannel readCh,
+    static int channelIO(ReadableByteChannel readCh,
                                  WritableByteChannel writeCh,
                                  ByteBuffer buf) throws IOException {
 
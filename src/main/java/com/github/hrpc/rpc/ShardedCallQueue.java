@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.hrpc.rpc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+
+/**
+ * A call queue split into shards, so that the readers and the handlers do not
+ * all contend on the locks of a single queue.
+ *
+ * A reader adds a call to a random shard.  Each handler has a home shard it
+ * takes calls from, and steals calls from the next shards when its own is
+ * empty, so no call waits while a handler is idle.  Handlers with nothing to
+ * do park, and a reader adding a call wakes one of them up.  The shards are
+ * lock-free queues; only the capacity is shared, as a semaphore.
+ *
+ * Calls are served roughly, not strictly, in the order they arrive.
+ */
+public class ShardedCallQueue implements CallQueue {
+    private final Queue<Server.Call>[] shards;
+    private final int capacity;
+    private final Semaphore space;
+    private final Queue<Thread> idleHandlers = new ConcurrentLinkedQueue<Thread>();
+    private final AtomicInteger nextHome = new AtomicInteger();
+    private final ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return (nextHome.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    public ShardedCallQueue(int capacity, Option conf) {
+        int numShards = conf.getInt(
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_SHARDS_KEY,
+                CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_SHARDS_DEFAULT);
+        if (numShards <= 0) {
+            numShards = Runtime.getRuntime().availableProcessors();
+        }
+        this.shards = (Queue<Server.Call>[]) new Queue<?>[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new ConcurrentLinkedQueue<Server.Call>();
+        }
+        this.capacity = capacity;
+        this.space = new Semaphore(capacity);
+    }
+
+    @Override
+    public void put(Server.Call call) throws InterruptedException {
+        space.acquire();
+        add(call);
+    }
+
+    @Override
+    public boolean offer(Server.Call call) {
+        if (!space.tryAcquire()) {
+            return false;
+        }
+        add(call);
+        return true;
+    }
+
+    private void add(Server.Call call) {
+        shards[ThreadLocalRandom.current().nextInt(shards.length)].add(call);
+        wakeIdleHandler();
+    }
+
+    private void wakeIdleHandler() {
+        final Thread handler = idleHandlers.poll();
+        if (handler != null) {
+            LockSupport.unpark(handler);
+        }
+    }
+
+    @Override
+    public Server.Call take() throws InterruptedException {
+        final int homeShard = home.get();
+        final Thread current = Thread.currentThread();
+        while (true) {
+            Server.Call call = poll(homeShard);
+            if (call != null) {
+                return call;
+            }
+            // Register as idle before looking again: a reader adds its call
+            // before it looks for an idle handler, so either this thread sees
+            // the call or the reader sees this thread.
+            idleHandlers.add(current);
+            call = poll(homeShard);
+            if (call != null) {
+                if (!idleHandlers.remove(current)) {
+                    // a reader is waking this thread for a call; pass it on
+                    wakeIdleHandler();
+                }
+                return call;
+            }
+            LockSupport.park(this);
+            if (!idleHandlers.remove(current)) {
+                // woken for a call, which another handler may need if this
+                // one does not take it
+                if (Thread.interrupted()) {
+                    wakeIdleHandler();
+                    throw new InterruptedException();
+                }
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /** Take a call from the home shard, or else from the others. */
+    private Server.Call poll(int homeShard) {
+        for (int i = 0; i < shards.length; i++) {
+            final Server.Call call = shards[(homeShard + i) % shards.length].poll();
+            if (call != null) {
+                space.release();
+                return call;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return capacity - space.availablePermits();
+    }
+}
@@ -24,6 +24,7 @@ import java.lang.reflect.InvocationTargetException;
 
 import java.net.InetSocketAddress;
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
 
 import javax.net.SocketFactory;
 
@@ -209,6 +210,18 @@ public class WritableRpcEngine implements RpcEngine {
                 startTime = Time.now();
             }
 
+            if (Client.isAsynchronousMode()) {
+                final CompletableFuture<Writable> response = client.callAsync(
+                        RPC.RpcKind.RPC_WRITABLE, new Invocation(method, args), remoteId);
+                Client.setAsyncReturnValue(new Client.AsyncReturnValue<Object>(response) {
+                    @Override
+                    Object convert(Writable value) {
+                        return ((ObjectWritable) value).get();
+                    }
+                }.start());
+                return defaultValue(method.getReturnType());
+            }
+
             ObjectWritable value = (ObjectWritable)
                     client.call(RPC.RpcKind.RPC_WRITABLE, new Invocation(method, args), remoteId);
             if (LOG.isDebugEnabled()) {
@@ -218,6 +231,29 @@ public class WritableRpcEngine implements RpcEngine {
             return value.get();
         }
 
+        /* the dummy value an asynchronous proxy method returns */
+        private static Object defaultValue(Class<?> type) {
+            if (!type.isPrimitive() || type == Void.TYPE) {
+                return null;
+            } else if (type == Boolean.TYPE) {
+                return false;
+            } else if (type == Character.TYPE) {
+                return (char) 0;
+            } else if (type == Byte.TYPE) {
+                return (byte) 0;
+            } else if (type == Short.TYPE) {
+                return (short) 0;
+            } else if (type == Integer.TYPE) {
+                return 0;
+            } else if (type == Long.TYPE) {
+                return 0L;
+            } else if (type == Float.TYPE) {
+                return 0f;
+            } else {
+                return 0d;
+            }
+        }
+
         /* close the IPC client that's responsible for this invoker's RPCs */
         @Override
         synchronized public void close() {
@@ -50,6 +50,10 @@ public class RpcMetrics {
     AtomicLong sentBytes = new AtomicLong();
     AtomicLong rpcQueueTime = new AtomicLong();
     AtomicLong rpcProcessingTime = new AtomicLong();
+    AtomicLong rpcDeadlineExceeded = new AtomicLong();
+    AtomicLong rpcOverloaded = new AtomicLong();
+    AtomicLong rpcThrottled = new AtomicLong();
+    AtomicLong rpcRetryCacheHits = new AtomicLong();
 
     public int numOpenConnections() {
         return server.getNumOpenConnections();
@@ -100,4 +104,48 @@ public class RpcMetrics {
     public void addRpcProcessingTime(int processingTime) {
         rpcProcessingTime.addAndGet(processingTime);
     }
+
+    /**
+     * Count a call dropped because it expired in the call queue
+     */
+    public void incrRpcDeadlineExceeded() {
+        rpcDeadlineExceeded.incrementAndGet();
+    }
+
+    public long rpcDeadlineExceeded() {
+        return rpcDeadlineExceeded.get();
+    }
+
+    /**
+     * Count a call failed unserved as the server was overloaded
+     */
+    public void incrRpcOverloaded() {
+        rpcOverloaded.incrementAndGet();
+    }
+
+    public long rpcOverloaded() {
+        return rpcOverloaded.get();
+    }
+
+    /**
+     * Count a call refused as its client or protocol went over its rate
+     */
+    public void incrRpcThrottled() {
+        rpcThrottled.incrementAndGet();
+    }
+
+    public long rpcThrottled() {
+        return rpcThrottled.get();
+    }
+
+    /**
+     * Count a retried call answered with the outcome of the earlier call
+     */
+    public void incrRpcRetryCacheHits() {
+        rpcRetryCacheHits.incrementAndGet();
+    }
+
+    public long rpcRetryCacheHits() {
+        return rpcRetryCacheHits.get();
+    }
 }
@@ -38,4 +38,171 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
     /** Default value for IPC_SERVER_HANDLER_QUEUE_SIZE_KEY */
     public static final int     IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT = 100;
 
+    /** Serve each call of a RPC server on a thread of its own, a virtual
+     *  thread if the JVM has them, with at most this many calls served at
+     *  once; 0 for a fixed set of handler threads */
+    public static final String  IPC_SERVER_MAX_CONCURRENT_CALLS_KEY =
+            "ipc.server.max.concurrent.calls";
+    /** Default value for IPC_SERVER_MAX_CONCURRENT_CALLS_KEY */
+    public static final int     IPC_SERVER_MAX_CONCURRENT_CALLS_DEFAULT = 0;
+    /** Free buffers kept by a RPC server for each size of request buffer,
+     *  so that requests are not read into buffers allocated for each */
+    public static final String  IPC_SERVER_REQUEST_BUFFER_POOL_SIZE_KEY =
+            "ipc.server.request.buffer.pool.size";
+    /** Default value for IPC_SERVER_REQUEST_BUFFER_POOL_SIZE_KEY */
+    public static final int     IPC_SERVER_REQUEST_BUFFER_POOL_SIZE_DEFAULT = 64;
+    /** Free buffers kept by a RPC server for each size of response buffer,
+     *  so that responses are written into reused direct buffers */
+    public static final String  IPC_SERVER_RESPONSE_BUFFER_POOL_SIZE_KEY =
+            "ipc.server.response.buffer.pool.size";
+    /** Default value for IPC_SERVER_RESPONSE_BUFFER_POOL_SIZE_KEY */
+    public static final int     IPC_SERVER_RESPONSE_BUFFER_POOL_SIZE_DEFAULT = 64;
+    /** Whether the readers of a RPC server hand their hottest connections
+     *  over to idler readers */
+    public static final String  IPC_SERVER_READER_REBALANCE_KEY =
+            "ipc.server.reader.rebalance";
+    /** Default value for IPC_SERVER_READER_REBALANCE_KEY */
+    public static final boolean IPC_SERVER_READER_REBALANCE_DEFAULT = false;
+    /** Calls a connection may have outstanding before its reader stops
+     *  reading from it, or 0 for no limit.  Reading also stops while the
+     *  call queue is full. */
+    public static final String  IPC_SERVER_CONNECTION_MAX_OUTSTANDING_CALLS_KEY =
+            "ipc.server.connection.max.outstanding.calls";
+    /** Default value for IPC_SERVER_CONNECTION_MAX_OUTSTANDING_CALLS_KEY */
+    public static final int     IPC_SERVER_CONNECTION_MAX_OUTSTANDING_CALLS_DEFAULT = 0;
+    /** Number of threads in RPC server accepting connections */
+    public static final String  IPC_SERVER_LISTENER_THREADS_KEY =
+            "ipc.server.listener.threads";
+    /** Default value for IPC_SERVER_LISTENER_THREADS_KEY */
+    public static final int     IPC_SERVER_LISTENER_THREADS_DEFAULT = 1;
+    /** Whether the threads accepting connections each have a socket of their
+     *  own, bound to the port with SO_REUSEPORT, where the platform allows */
+    public static final String  IPC_SERVER_LISTENER_REUSEPORT_KEY =
+            "ipc.server.listener.reuseport";
+    /** Default value for IPC_SERVER_LISTENER_REUSEPORT_KEY */
+    public static final boolean IPC_SERVER_LISTENER_REUSEPORT_DEFAULT = true;
+    /** Class of the queue between the readers and the handlers of a RPC
+     *  server, a CallQueue such as FairCallQueue or
+     *  ShardedCallQueue; FifoCallQueue by default */
+    public static final String  IPC_SERVER_CALLQUEUE_IMPL_KEY =
+            "ipc.server.callqueue.impl";
+    /** Number of shards of a ShardedCallQueue; 0 means one per processor */
+    public static final String  IPC_SERVER_CALLQUEUE_SHARDS_KEY =
+            "ipc.server.callqueue.shards";
+    /** Default value for IPC_SERVER_CALLQUEUE_SHARDS_KEY */
+    public static final int     IPC_SERVER_CALLQUEUE_SHARDS_DEFAULT = 0;
+    /** Number of priority levels of a FairCallQueue */
+    public static final String  IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY =
+            "ipc.server.callqueue.fair.levels";
+    /** Default value for IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY */
+    public static final int     IPC_SERVER_CALLQUEUE_FAIR_LEVELS_DEFAULT = 4;
+    /** How often a FairCallQueue scales down the call counts of the callers,
+     *  in msecs */
+    public static final String  IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_KEY =
+            "ipc.server.callqueue.fair.decay.period";
+    /** Default value for IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_KEY */
+    public static final int     IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_DEFAULT = 5000;
+    /** How much a FairCallQueue scales down the call counts by */
+    public static final String  IPC_SERVER_CALLQUEUE_FAIR_DECAY_FACTOR_KEY =
+            "ipc.server.callqueue.fair.decay.factor";
+    /** Default value for IPC_SERVER_CALLQUEUE_FAIR_DECAY_FACTOR_KEY */
+    public static final double  IPC_SERVER_CALLQUEUE_FAIR_DECAY_FACTOR_DEFAULT = 0.5;
+    /** What a FairCallQueue tells callers apart by: "clientid" or "ip" */
+    public static final String  IPC_SERVER_CALLQUEUE_FAIR_IDENTITY_KEY =
+            "ipc.server.callqueue.fair.identity";
+    /** Default value for IPC_SERVER_CALLQUEUE_FAIR_IDENTITY_KEY */
+    public static final String  IPC_SERVER_CALLQUEUE_FAIR_IDENTITY_DEFAULT = "clientid";
+    /** Queue delay, in msecs, over which a RPC server deems itself overloaded
+     *  and fails the calls that waited longest; 0 turns load shedding off */
+    public static final String  IPC_SERVER_CALLQUEUE_CODEL_TARGET_KEY =
+            "ipc.server.callqueue.codel.target";
+    /** Default value for IPC_SERVER_CALLQUEUE_CODEL_TARGET_KEY */
+    public static final int     IPC_SERVER_CALLQUEUE_CODEL_TARGET_DEFAULT = 0;
+    /** Msecs over which the minimum queue delay is compared to the target */
+    public static final String  IPC_SERVER_CALLQUEUE_CODEL_INTERVAL_KEY =
+            "ipc.server.callqueue.codel.interval";
+    /** Default value for IPC_SERVER_CALLQUEUE_CODEL_INTERVAL_KEY */
+    public static final int     IPC_SERVER_CALLQUEUE_CODEL_INTERVAL_DEFAULT = 100;
+    /** Calls per second each client of a RPC server may make; 0 means no
+     *  limit */
+    public static final String  IPC_SERVER_RATELIMIT_CLIENT_RATE_KEY =
+            "ipc.server.ratelimit.client.rate";
+    /** Default value for IPC_SERVER_RATELIMIT_CLIENT_RATE_KEY */
+    public static final int     IPC_SERVER_RATELIMIT_CLIENT_RATE_DEFAULT = 0;
+    /** Calls a client may make at once over its rate; 0 means a second's
+     *  worth */
+    public static final String  IPC_SERVER_RATELIMIT_CLIENT_BURST_KEY =
+            "ipc.server.ratelimit.client.burst";
+    /** Default value for IPC_SERVER_RATELIMIT_CLIENT_BURST_KEY */
+    public static final int     IPC_SERVER_RATELIMIT_CLIENT_BURST_DEFAULT = 0;
+    /** Calls per second a RPC server serves for each protocol, over all
+     *  clients; 0 means no limit.  Set for a single protocol by appending
+     *  "." and the protocol name to the key */
+    public static final String  IPC_SERVER_RATELIMIT_PROTOCOL_RATE_KEY =
+            "ipc.server.ratelimit.protocol.rate";
+    /** Default value for IPC_SERVER_RATELIMIT_PROTOCOL_RATE_KEY */
+    public static final int     IPC_SERVER_RATELIMIT_PROTOCOL_RATE_DEFAULT = 0;
+    /** Calls a protocol may get at once over its rate; 0 means a second's
+     *  worth.  Set for a single protocol as its rate is */
+    public static final String  IPC_SERVER_RATELIMIT_PROTOCOL_BURST_KEY =
+            "ipc.server.ratelimit.protocol.burst";
+    /** Default value for IPC_SERVER_RATELIMIT_PROTOCOL_BURST_KEY */
+    public static final int     IPC_SERVER_RATELIMIT_PROTOCOL_BURST_DEFAULT = 0;
+    /** What the rates of clients tell them apart by: "clientid" or "ip" */
+    public static final String  IPC_SERVER_RATELIMIT_IDENTITY_KEY =
+            "ipc.server.ratelimit.identity";
+    /** Default value for IPC_SERVER_RATELIMIT_IDENTITY_KEY */
+    public static final String  IPC_SERVER_RATELIMIT_IDENTITY_DEFAULT = "clientid";
+    /** Number of recent calls a RPC server remembers the outcome of, so that
+     *  retries of them get the same response without being served again;
+     *  0 turns the retry cache off */
+    public static final String  IPC_SERVER_RETRYCACHE_SIZE_KEY =
+            "ipc.server.retrycache.size";
+    /** Default value for IPC_SERVER_RETRYCACHE_SIZE_KEY */
+    public static final int     IPC_SERVER_RETRYCACHE_SIZE_DEFAULT = 0;
+    /** Msecs the retry cache remembers a completed call for */
+    public static final String  IPC_SERVER_RETRYCACHE_EXPIRY_KEY =
+            "ipc.server.retrycache.expiry";
+    /** Default value for IPC_SERVER_RETRYCACHE_EXPIRY_KEY */
+    public static final int     IPC_SERVER_RETRYCACHE_EXPIRY_DEFAULT = 600000;
+
+    /** Number of sockets the RPC client may open to each server */
+    public static final String  IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY =
+            "ipc.client.connections.per.server";
+    /** Default value for IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY */
+    public static final int     IPC_CLIENT_CONNECTIONS_PER_SERVER_DEFAULT = 1;
+
+    /** Number of selector threads reading responses for all the connections
+     *  of a RPC client; 0 reads with one thread per connection */
+    public static final String  IPC_CLIENT_SELECTOR_THREADS_KEY =
+            "ipc.client.selector.threads";
+    /** Default value for IPC_CLIENT_SELECTOR_THREADS_KEY */
+    public static final int     IPC_CLIENT_SELECTOR_THREADS_DEFAULT = 0;
+
+    /** How long a RPC client waits for the response to a call, in msecs;
+     *  0 waits as long as the connection is alive */
+    public static final String  IPC_CLIENT_CALL_TIMEOUT_KEY =
+            "ipc.client.call.timeout";
+    /** Default value for IPC_CLIENT_CALL_TIMEOUT_KEY */
+    public static final int     IPC_CLIENT_CALL_TIMEOUT_DEFAULT = 0;
+
+    /** A hedging proxy sends a call to another server when it is slower than
+     *  this percentile of the recent calls */
+    public static final String  IPC_CLIENT_HEDGING_PERCENTILE_KEY =
+            "ipc.client.hedging.percentile";
+    /** Default value for IPC_CLIENT_HEDGING_PERCENTILE_KEY */
+    public static final int     IPC_CLIENT_HEDGING_PERCENTILE_DEFAULT = 95;
+    /** Minimum msecs a hedging proxy waits for a call before sending it to
+     *  another server */
+    public static final String  IPC_CLIENT_HEDGING_MIN_DELAY_KEY =
+            "ipc.client.hedging.min.delay";
+    /** Default value for IPC_CLIENT_HEDGING_MIN_DELAY_KEY */
+    public static final int     IPC_CLIENT_HEDGING_MIN_DELAY_DEFAULT = 5;
+
+    /** Msecs over which a balancing proxy forgets the latency of a server */
+    public static final String  IPC_CLIENT_BALANCING_DECAY_KEY =
+            "ipc.client.balancing.decay";
+    /** Default value for IPC_CLIENT_BALANCING_DECAY_KEY */
+    public static final int     IPC_CLIENT_BALANCING_DECAY_DEFAULT = 10000;
+
 }
@@ -31,6 +31,20 @@ public class Option {
      */
     private static abstract class NegativeCacheSentinel {}
 
+    /** A new, empty set of options. */
+    public Option() {
+    }
+
+    /**
+     * A copy of the given options.
+     *
+     * @param other the options to copy.
+     */
+    public Option(Option other) {
+        this.optionMap = new HashMap<String, String>(other.optionMap);
+        this.classLoader = other.classLoader;
+    }
+
 
     /**
      * Get the value of the <code>name</code> property, <code>null</code> if
@@ -148,6 +162,23 @@ public class Option {
         optionMap.put(name, value);
     }
 
+    /**
+     * Get the properties whose names start with <code>prefix</code>.
+     *
+     * @param prefix the prefix of the property names.
+     * @return the values of the properties, by their names with the prefix
+     *         removed.
+     */
+    public Map<String, String> getPropsWithPrefix(String prefix) {
+        Map<String, String> props = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : optionMap.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                props.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return props;
+    }
+
     /**
      * Set the array of string values for the <code>name</code> property as
      * as comma delimited values.
@@ -77,9 +77,22 @@ public class ProtoUtil {
     public static RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
                                                              RpcRequestHeaderProto.OperationProto operation, int callId,
                                                              int retryCount, byte[] uuid) {
+        return makeRpcRequestHeader(rpcKind, operation, callId, retryCount, uuid, 0);
+    }
+
+    /**
+     * Make a request header for a call the client waits for no longer than
+     * <code>timeout</code> msecs; 0 means no timeout.
+     */
+    public static RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
+                                                             RpcRequestHeaderProto.OperationProto operation, int callId,
+                                                             int retryCount, byte[] uuid, int timeout) {
         RpcRequestHeaderProto.Builder result = RpcRequestHeaderProto.newBuilder();
         result.setRpcKind(convert(rpcKind)).setRpcOp(operation).setCallId(callId)
                 .setRetryCount(retryCount).setClientId(ByteString.copyFrom(uuid));
+        if (timeout > 0) {
+            result.setTimeout(timeout);
+        }
         return result.build();
     }
 
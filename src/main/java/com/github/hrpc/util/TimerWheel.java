@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs timeouts after a delay, on a hashed timer wheel.
+ *
+ * Time is cut into ticks, and the wheel has a slot for each of a number of
+ * ticks, a timeout going to the slot of the tick it is due at modulo the
+ * number of slots.  Scheduling and cancelling a timeout thus take constant
+ * time, and a tick only looks at the timeouts of its slot: the cost of the
+ * wheel grows with the timeouts that expire, not with those pending.  The
+ * timeouts run on the thread of the wheel, up to a tick after they are due,
+ * and should be short.
+ */
+public class TimerWheel {
+    public static final Log LOG = LogFactory.getLog(TimerWheel.class);
+
+    /** A task run once its delay is over, unless cancelled before. */
+    public static abstract class Timeout implements Runnable {
+        private long deadline;         // tick the timeout is due at
+        private int slot = -1;         // -1 if not scheduled
+        private Timeout prev;
+        private Timeout next;
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;     // first timeout of each slot
+    private final long startTime;
+    private long currentTick;          // the last tick expired
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * @param name name of the thread of the wheel
+     * @param tickMillis msecs in a tick
+     * @param ticksPerWheel number of slots
+     */
+    public TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Invalid tick " + tickMillis
+                    + " or ticks per wheel " + ticksPerWheel);
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[ticksPerWheel];
+        this.startTime = Time.monotonicNow();
+        this.worker = new Thread(name) {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        };
+        this.worker.setDaemon(true);
+    }
+
+    /** Start the thread that runs the timeouts. */
+    public void start() {
+        worker.start();
+    }
+
+    /** Stop the thread that runs the timeouts; pending ones never run. */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Schedule a timeout, or reschedule it if it is pending.
+     * @param delay msecs after which it is to run
+     */
+    public synchronized void schedule(Timeout timeout, long delay) {
+        unlink(timeout);
+        final long due = (Time.monotonicNow() - startTime + Math.max(delay, 0)
+                + tickMillis - 1) / tickMillis;
+        timeout.deadline = Math.max(due, currentTick + 1);
+        link(timeout, (int) (timeout.deadline % slots.length));
+    }
+
+    /**
+     * Cancel a timeout.
+     * @return true if it was pending
+     */
+    public synchronized boolean cancel(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /** @return true if the timeout is scheduled and has not run yet */
+    public synchronized boolean isScheduled(Timeout timeout) {
+        return timeout.slot >= 0;
+    }
+
+    /**
+     * Run the timeouts due by the given time, on the calling thread.
+     * @param now msecs, as given by {@link Time#monotonicNow()}
+     */
+    public void advance(long now) {
+        for (Timeout timeout : expire(now)) {
+            try {
+                timeout.run();
+            } catch (Throwable t) {
+                LOG.warn(worker.getName() + ": timeout " + timeout + " failed", t);
+            }
+        }
+    }
+
+    /** Take the timeouts due by the given time off the wheel. */
+    private synchronized List<Timeout> expire(long now) {
+        final long nowTick = (now - startTime) / tickMillis;
+        if (nowTick <= currentTick) {
+            return Collections.emptyList();
+        }
+        final List<Timeout> expired = new ArrayList<Timeout>();
+        // a whole turn of the wheel sees every slot
+        final long last = Math.min(nowTick, currentTick + slots.length);
+        for (long tick = currentTick + 1; tick <= last; tick++) {
+            Timeout timeout = slots[(int) (tick % slots.length)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.deadline <= nowTick) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        currentTick = nowTick;
+        return expired;
+    }
+
+    private synchronized long getNextTickTime() {
+        return startTime + (currentTick + 1) * tickMillis;
+    }
+
+    private void runWorker() {
+        while (running) {
+            final long sleep = getNextTickTime() - Time.monotonicNow();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;                        // stopping, most likely
+                }
+            }
+            advance(Time.monotonicNow());
+        }
+    }
+
+    private void link(Timeout timeout, int slot) {
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+}
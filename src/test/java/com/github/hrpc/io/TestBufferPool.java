@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.io;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the pool of buffers in size classes.
+ */
+public class TestBufferPool {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(256, 4096, 2, false);
+        ByteBuffer small = pool.take(10);
+        Assert.assertEquals(256, small.capacity());
+        Assert.assertEquals(0, small.position());
+        Assert.assertEquals(10, small.limit());
+
+        ByteBuffer medium = pool.take(1025);
+        Assert.assertEquals(2048, medium.capacity());
+        Assert.assertEquals(1025, medium.limit());
+
+        // above the largest class, not pooled
+        ByteBuffer large = pool.take(5000);
+        Assert.assertEquals(5000, large.capacity());
+        pool.release(large);
+        Assert.assertNotSame(large, pool.take(5000));
+
+        // a returned buffer is reused for the sizes of its class
+        medium.position(100);
+        pool.release(medium);
+        ByteBuffer reused = pool.take(2000);
+        Assert.assertSame(medium, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(2000, reused.limit());
+    }
+
+    @Test
+    public void testFreeBuffersPerClass() {
+        BufferPool pool = new BufferPool(256, 4096, 2, true);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.take(300);
+            Assert.assertTrue(buffers[i].isDirect());
+        }
+        for (ByteBuffer b : buffers) {
+            pool.release(b);
+        }
+        // heap buffers and buffers of other sizes are not taken in
+        pool.release(ByteBuffer.allocate(512));
+        pool.release(ByteBuffer.allocateDirect(500));
+
+        Assert.assertSame(buffers[0], pool.take(512));
+        Assert.assertSame(buffers[1], pool.take(512));
+        ByteBuffer fresh = pool.take(512);
+        Assert.assertNotSame(buffers[2], fresh);
+        Assert.assertTrue(fresh.isDirect());
+    }
+
+    @Test
+    public void testOutputStreamGrows() {
+        BufferPool pool = new BufferPool(256, 4096, 2, true);
+        ByteBufferOutputStream out = new ByteBufferOutputStream(pool, 10);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        out.write(7);
+        out.write(data, 0, data.length);
+        Assert.assertEquals(1001, out.size());
+
+        ByteBuffer written = out.getBuffer();
+        Assert.assertTrue(written.isDirect());
+        Assert.assertEquals(1024, written.capacity());
+        Assert.assertEquals(1001, written.remaining());
+        Assert.assertEquals(7, written.get());
+        for (int i = 0; i < data.length; i++) {
+            Assert.assertEquals(data[i], written.get());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.hrpc.rpc.MultithreadedTestUtil.TestContext;
+
+/**
+ * Benchmark of the table of in-flight calls of a client connection against
+ * the Hashtable it replaced.  Each caller thread registers a call under a
+ * fresh id and completes it again, as a sender and the receiver do.
+ *
+ * Usage: CallTableBenchmark [callers (64)] [seconds per run (10)]
+ */
+public class CallTableBenchmark {
+
+    /** The operations of the connection on its calls. */
+    private interface Calls {
+        void put(Client.Call call);
+        Client.Call remove(int id);
+    }
+
+    private static class HashtableCalls implements Calls {
+        private final Hashtable<Integer, Client.Call> calls =
+                new Hashtable<Integer, Client.Call>();
+
+        @Override
+        public void put(Client.Call call) {
+            calls.put(call.id, call);
+        }
+
+        @Override
+        public Client.Call remove(int id) {
+            return calls.remove(id);
+        }
+
+        @Override
+        public String toString() {
+            return "Hashtable";
+        }
+    }
+
+    private static class CallTableCalls implements Calls {
+        private final CallTable calls = new CallTable();
+
+        @Override
+        public void put(Client.Call call) {
+            calls.put(call);
+        }
+
+        @Override
+        public Client.Call remove(int id) {
+            return calls.remove(id);
+        }
+
+        @Override
+        public String toString() {
+            return "CallTable";
+        }
+    }
+
+    private static double run(final Calls calls, int callers, int seconds)
+            throws Exception {
+        final AtomicLong count = new AtomicLong();
+        TestContext ctx = new TestContext();
+        for (int i = 0; i < callers; i++) {
+            // the call objects are reused so only the table is measured
+            final Client.Call[] pending = new Client.Call[16];
+            for (int j = 0; j < pending.length; j++) {
+                pending[j] = new Client.Call(RPC.RpcKind.RPC_BUILTIN, null);
+            }
+            ctx.addThread(new MultithreadedTestUtil.RepeatingTestThread(ctx) {
+                @Override
+                public void doAnAction() throws Exception {
+                    for (Client.Call c : pending) {
+                        calls.put(c);
+                    }
+                    for (Client.Call c : pending) {
+                        if (calls.remove(c.id) != c) {
+                            throw new AssertionError("lost call " + c.id);
+                        }
+                    }
+                    count.addAndGet(pending.length);
+                }
+            });
+        }
+        ctx.startThreads();
+        long start = System.nanoTime();
+        ctx.waitFor(seconds * 1000L);
+        ctx.stop();
+        long elapsed = System.nanoTime() - start;
+        return count.get() * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int callers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Calls[] candidates = { new HashtableCalls(), new CallTableCalls() };
+        // warm up
+        for (Calls calls : candidates) {
+            run(calls, callers, 2);
+        }
+        System.out.println("====== Results (" + callers + " callers) ======");
+        for (Calls calls : candidates) {
+            System.out.println(calls + ": "
+                    + (long) run(calls, callers, seconds) + " calls per second");
+        }
+    }
+}
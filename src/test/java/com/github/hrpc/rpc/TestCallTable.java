@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.hrpc.rpc.MultithreadedTestUtil.TestContext;
+
+/**
+ * Tests for the table of in-flight calls of a client connection.
+ */
+public class TestCallTable {
+
+    static Client.Call newCall(int id) {
+        Client.setCallIdAndRetryCount(id, 0);
+        return new Client.Call(RPC.RpcKind.RPC_BUILTIN, null);
+    }
+
+    @Test
+    public void testPutRemove() {
+        CallTable table = new CallTable();
+        Assert.assertTrue(table.isEmpty());
+        Assert.assertNull(table.remove(1));
+
+        Client.Call c1 = newCall(1);
+        Client.Call c2 = newCall(2);
+        table.put(c1);
+        table.put(c2);
+        Assert.assertEquals(2, table.size());
+
+        Assert.assertNull(table.remove(2, newCall(2)));
+        Assert.assertSame(c2, table.remove(2, c2));
+        Assert.assertNull(table.remove(2));
+        Assert.assertSame(c1, table.remove(1));
+        Assert.assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testCollisionsAndResize() {
+        CallTable table = new CallTable();
+        // ids with the same home slot, then many more to force resizes
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i < 8 ? i * 1024 : i * 7 + 5;
+            table.put(newCall(ids[i]));
+        }
+        Assert.assertEquals(ids.length, table.size());
+
+        // removing a colliding call must not hide the ones probed past it
+        Assert.assertEquals(0, table.remove(0).id);
+        for (int i = 1; i < ids.length; i++) {
+            Client.Call c = table.remove(ids[i]);
+            Assert.assertNotNull("id " + ids[i], c);
+            Assert.assertEquals(ids[i], c.id);
+        }
+        Assert.assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testWrapAround() {
+        CallTable table = new CallTable();
+        table.put(newCall(Integer.MAX_VALUE));
+        table.put(newCall(0));
+        Assert.assertEquals(Integer.MAX_VALUE, table.remove(Integer.MAX_VALUE).id);
+        Assert.assertEquals(0, table.remove(0).id);
+    }
+
+    @Test
+    public void testRemoveAll() {
+        CallTable table = new CallTable();
+        for (int i = 0; i < 100; i++) {
+            table.put(newCall(i));
+        }
+        List<Client.Call> removed = table.removeAll();
+        Assert.assertEquals(100, removed.size());
+        Set<Integer> ids = new HashSet<Integer>();
+        for (Client.Call c : removed) {
+            ids.add(c.id);
+        }
+        Assert.assertEquals(100, ids.size());
+        Assert.assertTrue(table.isEmpty());
+    }
+
+    @Test(timeout=20000)
+    public void testConcurrentCallers() throws Exception {
+        final CallTable table = new CallTable();
+        TestContext ctx = new TestContext();
+        for (int i = 0; i < 16; i++) {
+            ctx.addThread(new MultithreadedTestUtil.TestingThread(ctx) {
+                @Override
+                public void doWork() throws Exception {
+                    Client.Call[] calls = new Client.Call[64];
+                    for (int round = 0; round < 1000; round++) {
+                        for (int j = 0; j < calls.length; j++) {
+                            calls[j] = newCall(Client.nextCallId());
+                            table.put(calls[j]);
+                        }
+                        for (Client.Call c : calls) {
+                            Assert.assertSame(c, table.remove(c.id));
+                        }
+                    }
+                }
+            });
+        }
+        ctx.startThreads();
+        ctx.waitFor(20000);
+        ctx.stop();
+        Assert.assertTrue(table.isEmpty());
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the registry of the connections of a server.
+ */
+public class TestConnectionRegistry {
+
+    @Test
+    public void testAddRemove() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<String>();
+        // connections are told apart by identity
+        String[] connections = new String[3000];
+        int[] indexes = new int[connections.length];
+        for (int i = 0; i < indexes.length; i++) {
+            connections[i] = "c" + i;
+            indexes[i] = registry.add(connections[i]);
+        }
+        Assert.assertEquals(3000, registry.size());
+
+        // removing twice, or by the wrong slot, does nothing
+        Assert.assertTrue(registry.remove(indexes[5], connections[5]));
+        Assert.assertFalse(registry.remove(indexes[5], connections[5]));
+        Assert.assertFalse(registry.remove(indexes[6], connections[7]));
+        Assert.assertFalse(registry.remove(-1, connections[8]));
+        Assert.assertEquals(2999, registry.size());
+
+        // the free slot is taken again
+        Assert.assertEquals(indexes[5], registry.add("new"));
+        List<String> snapshot = registry.snapshot();
+        Assert.assertEquals(3000, snapshot.size());
+        Assert.assertTrue(snapshot.contains("new"));
+        Assert.assertFalse(snapshot.contains(connections[5]));
+
+        for (int i = 0; i < indexes.length; i++) {
+            if (i != 5) {
+                Assert.assertTrue(registry.remove(indexes[i], connections[i]));
+            }
+        }
+        Assert.assertEquals(1, registry.size());
+        Assert.assertEquals(Collections.singletonList("new"), registry.snapshot());
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+
+/**
+ * Tests for the call queue that shares the handlers between callers.
+ */
+public class TestFairCallQueue {
+
+    private static Server.Call newCall(int id, byte[] clientId) {
+        return new Server.Call(id, 0, null, null, RPC.RpcKind.RPC_BUILTIN, clientId);
+    }
+
+    @Test
+    public void testHeavyCallerDoesNotDelayOthers() throws Exception {
+        Option conf = new Option();
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY, 4);
+        CallQueue queue = new FairCallQueue(40, conf);
+        byte[] heavy = new byte[] { 1 };
+        byte[] light = new byte[] { 2 };
+
+        // the heavy caller only gets its share of the capacity
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(queue.offer(newCall(i, heavy)));
+        }
+        Assert.assertFalse(queue.offer(newCall(10, heavy)));
+        Assert.assertTrue(queue.offer(newCall(11, light)));
+        Assert.assertEquals(11, queue.size());
+
+        // the light caller is served first, the heavy one in order
+        Assert.assertSame(light, queue.take().getClientId());
+        for (int i = 0; i < 10; i++) {
+            Server.Call call = queue.take();
+            Assert.assertSame(heavy, call.getClientId());
+        }
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test (timeout=5000)
+    public void testPutTakesSpaceBelowItsLevel() throws Exception {
+        Option conf = new Option();
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY, 2);
+        final CallQueue queue = new FairCallQueue(2, conf);
+        // the first caller has all the calls: the bottom level
+        Assert.assertTrue(queue.offer(newCall(0, new byte[] { 0 })));
+        Assert.assertFalse(queue.offer(newCall(1, new byte[] { 1 })));
+        // the next callers have less than 1/2 of the calls: the top level;
+        // two of their calls use up its credits
+        for (int i = 2; i < 4; i++) {
+            Assert.assertTrue(queue.offer(newCall(i, new byte[] { (byte) i })));
+            Assert.assertEquals(i, queue.take().getCallId());
+        }
+        Assert.assertTrue(queue.offer(newCall(4, new byte[] { 4 })));
+
+        // a top level call waits for space anywhere
+        Thread putter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(newCall(5, new byte[] { 5 }));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        putter.start();
+        while (putter.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        // the bottom level has its turn, which makes room for the call
+        Assert.assertEquals(0, queue.take().getCallId());
+        putter.join();
+        Assert.assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testUsageDecay() {
+        FairCallQueue.Usage usage = new FairCallQueue.Usage(4, Long.MAX_VALUE / 2, 0.5);
+        // a lone caller has all the calls
+        Assert.assertEquals(3, usage.getPriorityLevel("a"));
+        for (int i = 0; i < 15; i++) {
+            usage.getPriorityLevel("a");
+        }
+        // another caller has 1/17th of the calls
+        Assert.assertEquals(0, usage.getPriorityLevel("b"));
+        // halved, 8 calls against 1 make for less than 1/8th
+        usage.decay();
+        Assert.assertEquals(0, usage.getPriorityLevel("b"));
+        // "a" decays to 1 call, "b" is forgotten
+        usage.decay();
+        usage.decay();
+        usage.decay();
+        for (int i = 0; i < 3; i++) {
+            usage.getPriorityLevel("c");
+        }
+        // 2 calls out of 5 are between 1/4 and 1/2
+        Assert.assertEquals(2, usage.getPriorityLevel("a"));
+    }
+}
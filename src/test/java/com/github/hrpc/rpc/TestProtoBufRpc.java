@@ -19,26 +19,52 @@ package com.github.hrpc.rpc;
 
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.hrpc.io.BufferPool;
 import com.github.hrpc.net.NetUtils;
+import com.github.hrpc.net.StandardSocketFactory;
 import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.CommonConfigurationKeysPublic;
 import com.github.hrpc.util.Option;
+import com.github.hrpc.util.ProtoUtil;
 
 import com.github.hrpc.util.StringUtils;
+import com.github.hrpc.util.Time;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.BlockingService;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
 
 import com.github.hrpc.rpc.protobuf.TestRpcServiceProtos.*;
 import com.github.hrpc.rpc.protobuf.TestProtos.*;
+import com.github.hrpc.rpc.protobuf.ProtobufRpcEngineProtos.RequestHeaderProto;
+import com.github.hrpc.rpc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto;
+import com.github.hrpc.rpc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
 import com.github.hrpc.rpc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcErrorCodeProto;
 
 /**
@@ -58,6 +84,14 @@ public class TestProtoBufRpc {
             extends TestProtobufRpcProto.BlockingInterface {
     }
 
+    @ProtocolInfo(protocolName = "testProto", protocolVersion = 1)
+    public interface TestIdempotentRpcService extends TestRpcService {
+        @Idempotent
+        @Override
+        EmptyResponseProto ping(RpcController unused, EmptyRequestProto request)
+                throws ServiceException;
+    }
+
     @ProtocolInfo(protocolName = "testProto2", protocolVersion = 1)
     public interface TestRpcService2 extends
             TestProtobufRpc2Proto.BlockingInterface {
@@ -94,6 +128,17 @@ public class TestProtoBufRpc {
             throw new ServiceException("error", new URISyntaxException("",
                     "testException"));
         }
+
+        @Override
+        public EmptyResponseProto sleep(RpcController unused,
+                                        SleepRequestProto request) throws ServiceException {
+            try {
+                Thread.sleep(request.getMilliSeconds());
+            } catch (InterruptedException e) {
+                throw new ServiceException(e);
+            }
+            return EmptyResponseProto.newBuilder().build();
+        }
     }
 
     public static class PBServer2Impl implements TestRpcService2 {
@@ -110,8 +155,34 @@ public class TestProtoBufRpc {
             return EchoResponseProto.newBuilder().setMessage(request.getMessage())
                     .build();
         }
+
+        /** Sleeps without holding the handler; fails if the time is negative. */
+        @Override
+        public EmptyResponseProto sleep2(RpcController unused,
+                                         SleepRequestProto request) throws ServiceException {
+            final CompletableFuture<EmptyResponseProto> response =
+                    new CompletableFuture<EmptyResponseProto>();
+            ProtobufRpcEngine.Server.deferResponse(response);
+            final int millis = request.getMilliSeconds();
+            TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (millis < 0) {
+                        response.completeExceptionally(new ServiceException("error",
+                                new URISyntaxException("", "testException")));
+                    } else {
+                        response.complete(EmptyResponseProto.newBuilder().build());
+                    }
+                }
+            }, Math.max(millis, 0), TimeUnit.MILLISECONDS);
+            return null;
+        }
     }
 
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).build());
+
     @Before
     public  void setUp() throws IOException { // Setup server for both protocols
         conf = new Option();
@@ -159,6 +230,76 @@ public class TestProtoBufRpc {
                 conf);
     }
 
+    /** @return the two ends, client then server, of a new socket */
+    private static SocketChannel[] newSocket() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel client =
+                    SocketChannel.open(listener.socket().getLocalSocketAddress());
+            return new SocketChannel[] {client, listener.accept()};
+        } finally {
+            listener.close();
+        }
+    }
+
+    /**
+     * @return a connection of the server over the given channel, that has
+     *   its context read and so takes calls to TestRpcService
+     */
+    private static Server.Connection newConnection(Server server,
+                                                   SocketChannel channel)
+            throws Exception {
+        Server.Connection connection =
+                server.new Connection(null, channel, Time.now());
+        Field contextRead =
+                Server.Connection.class.getDeclaredField("connectionContextRead");
+        contextRead.setAccessible(true);
+        contextRead.setBoolean(connection, true);
+        connection.protocolName = RPC.getProtocolName(TestRpcService.class);
+        return connection;
+    }
+
+    private static BufferPool getRequestBuffers(Server server) throws Exception {
+        Field requestBuffers = Server.class.getDeclaredField("requestBuffers");
+        requestBuffers.setAccessible(true);
+        return (BufferPool) requestBuffers.get(server);
+    }
+
+    /**
+     * Have the connection read a ping call, as its reader would.
+     * @return the buffer the call was read into
+     */
+    private static ByteBuffer readPing(Server server, Server.Connection connection,
+                                       byte[] clientId, int callId, int retry)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtoUtil.makeRpcRequestHeader(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET, callId,
+                retry, clientId).writeDelimitedTo(out);
+        RequestHeaderProto.newBuilder().setMethodName("ping")
+                .setDeclaringClassProtocolName(connection.protocolName)
+                .setClientProtocolVersion(RPC.getProtocolVersion(TestRpcService.class))
+                .build().writeDelimitedTo(out);
+        EmptyRequestProto.newBuilder().build().writeDelimitedTo(out);
+        ByteBuffer buf = getRequestBuffers(server).take(out.size());
+        buf.put(out.toByteArray());
+        buf.clear();
+        buf.limit(out.size());
+        Method processOneRpc = Server.Connection.class.getDeclaredMethod(
+                "processOneRpc", ByteBuffer.class);
+        processOneRpc.setAccessible(true);
+        try {
+            processOneRpc.invoke(connection, buf);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        return buf;
+    }
+
     @Test (timeout=5000)
     public void testProtoBufRpc() throws Exception {
         TestRpcService client = getClient();
@@ -206,6 +347,158 @@ public class TestProtoBufRpc {
         Assert.assertEquals(echoResponse.getMessage(), "hello");
     }
 
+    @Test (timeout=5000)
+    public void testDeferredResponses() throws Exception {
+        TestRpcService2 client = getClient2();
+        // far more pending calls than handlers
+        List<CompletableFuture<EmptyResponseProto>> futures =
+                new ArrayList<CompletableFuture<EmptyResponseProto>>();
+        long start = Time.monotonicNow();
+        Client.setAsynchronousMode(true);
+        try {
+            for (int i = 0; i < 20; i++) {
+                client.sleep2(null,
+                        SleepRequestProto.newBuilder().setMilliSeconds(1000).build());
+                futures.add(Client.<EmptyResponseProto>getAsyncReturnValue());
+            }
+        } finally {
+            Client.setAsynchronousMode(false);
+        }
+        for (CompletableFuture<EmptyResponseProto> future : futures) {
+            future.get();
+        }
+        Assert.assertTrue(Time.monotonicNow() - start < 4000);
+
+        try {
+            client.sleep2(null, SleepRequestProto.newBuilder().setMilliSeconds(-1).build());
+            Assert.fail("Expected exception is not thrown");
+        } catch (ServiceException se) {
+            RemoteException re = (RemoteException) se.getCause();
+            Assert.assertEquals(URISyntaxException.class.getName(), re.getClassName());
+            Assert.assertEquals(RpcErrorCodeProto.ERROR_APPLICATION, re.getErrorCode());
+        }
+    }
+
+    @Test (timeout=10000)
+    public void testThreadPerCall() throws Exception {
+        RPC.Server perCallServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).setQueueSizePerHandler(100)
+                .setMaxConcurrentCalls(4).build();
+        perCallServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(perCallServer), conf);
+        try {
+            // the calls see their client id, as on a handler
+            testProtoBufRpc(client);
+
+            // 4 calls at once: the first 4 sleeps overlap, the next 4 wait
+            List<CompletableFuture<EmptyResponseProto>> futures =
+                    new ArrayList<CompletableFuture<EmptyResponseProto>>();
+            long start = Time.monotonicNow();
+            Client.setAsynchronousMode(true);
+            try {
+                for (int i = 0; i < 8; i++) {
+                    client.sleep(null,
+                            SleepRequestProto.newBuilder().setMilliSeconds(500).build());
+                    futures.add(Client.<EmptyResponseProto>getAsyncReturnValue());
+                }
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+            for (CompletableFuture<EmptyResponseProto> future : futures) {
+                future.get();
+            }
+            long elapsed = Time.monotonicNow() - start;
+            Assert.assertTrue("took " + elapsed, elapsed >= 1000 && elapsed < 3000);
+        } finally {
+            RPC.stopProxy(client);
+            perCallServer.stop();
+        }
+    }
+
+    @Test (timeout=10000)
+    public void testAcceptorThreads() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_LISTENER_THREADS_KEY, 4);
+        // connections spread over the readers by their load
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_KEY, 3);
+        conf.setBoolean(CommonConfigurationKeys.IPC_SERVER_READER_REBALANCE_KEY, true);
+        conf.setInt(CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY, 8);
+        RPC.Server acceptingServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).setNumHandlers(2).build();
+        acceptingServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(acceptingServer), conf);
+        try {
+            List<CompletableFuture<EchoResponseProto>> futures =
+                    new ArrayList<CompletableFuture<EchoResponseProto>>();
+            Client.setAsynchronousMode(true);
+            try {
+                for (int i = 0; i < 64; i++) {
+                    client.echo(null, EchoRequestProto.newBuilder()
+                            .setMessage("hello" + i).build());
+                    futures.add(Client.<EchoResponseProto>getAsyncReturnValue());
+                }
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals("hello" + i, futures.get(i).get().getMessage());
+            }
+            Assert.assertTrue(acceptingServer.getNumOpenConnections() > 1);
+        } finally {
+            RPC.stopProxy(client);
+            acceptingServer.stop();
+        }
+    }
+
+    @Test (timeout=10000)
+    public void testReadsPausedOnFullQueue() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_CONNECTION_MAX_OUTSTANDING_CALLS_KEY, 2);
+        conf.setInt(CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY, 2);
+        // a single slot in the queue: the reader pauses connections rather
+        // than block on it
+        RPC.Server pausingServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).setNumHandlers(1)
+                .setQueueSizePerHandler(1).build();
+        pausingServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(pausingServer), conf);
+        try {
+            List<CompletableFuture<EmptyResponseProto>> sleeps =
+                    new ArrayList<CompletableFuture<EmptyResponseProto>>();
+            List<CompletableFuture<EchoResponseProto>> echoes =
+                    new ArrayList<CompletableFuture<EchoResponseProto>>();
+            Client.setAsynchronousMode(true);
+            try {
+                for (int i = 0; i < 16; i++) {
+                    client.sleep(null,
+                            SleepRequestProto.newBuilder().setMilliSeconds(20).build());
+                    sleeps.add(Client.<EmptyResponseProto>getAsyncReturnValue());
+                    client.echo(null, EchoRequestProto.newBuilder()
+                            .setMessage("hello" + i).build());
+                    echoes.add(Client.<EchoResponseProto>getAsyncReturnValue());
+                }
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+            for (int i = 0; i < echoes.size(); i++) {
+                Assert.assertEquals("hello" + i, echoes.get(i).get().getMessage());
+                sleeps.get(i).get();
+            }
+            Assert.assertEquals("pong", client.echo(null, EchoRequestProto.newBuilder()
+                    .setMessage("pong").build()).getMessage());
+        } finally {
+            RPC.stopProxy(client);
+            pausingServer.stop();
+        }
+    }
+
     @Test (timeout=5000)
     public void testProtoBufRandomException() throws Exception {
         TestRpcService client = getClient();
@@ -224,6 +517,454 @@ public class TestProtoBufRpc {
         }
     }
 
+    @Test (timeout=5000)
+    public void testProtoBufRpcAsync() throws Exception {
+        TestRpcService client = getClient();
+        List<CompletableFuture<EchoResponseProto>> futures =
+                new ArrayList<CompletableFuture<EchoResponseProto>>();
+        Client.setAsynchronousMode(true);
+        try {
+            for (int i = 0; i < 100; i++) {
+                EchoRequestProto echoRequest = EchoRequestProto.newBuilder()
+                        .setMessage("hello" + i).build();
+                Assert.assertNull(client.echo(null, echoRequest));
+                CompletableFuture<EchoResponseProto> future =
+                        Client.getAsyncReturnValue();
+                futures.add(future);
+            }
+            client.error(null, EmptyRequestProto.newBuilder().build());
+            CompletableFuture<EmptyResponseProto> error = Client.getAsyncReturnValue();
+            Assert.assertNull(Client.getAsyncReturnValue());
+
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals("hello" + i, futures.get(i).get().getMessage());
+            }
+            try {
+                error.get();
+                Assert.fail("Expected exception is not thrown");
+            } catch (ExecutionException e) {
+                ServiceException se = (ServiceException) e.getCause();
+                RemoteException re = (RemoteException) se.getCause();
+                Assert.assertTrue(re.getErrorCode().equals(
+                        RpcErrorCodeProto.ERROR_RPC_SERVER));
+            }
+        } finally {
+            Client.setAsynchronousMode(false);
+        }
+
+        // the connection is still usable synchronously
+        testProtoBufRpc(client);
+    }
+
+    @Test (timeout=5000)
+    public void testConnectionsPerServer() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY, 2);
+        TestRpcService client = getClient();
+        Client.setAsynchronousMode(true);
+        try {
+            // the first connection is busy while the server sleeps,
+            // so the next calls open the second one
+            client.sleep(null, SleepRequestProto.newBuilder()
+                    .setMilliSeconds(500).build());
+            CompletableFuture<EmptyResponseProto> sleep = Client.getAsyncReturnValue();
+            for (int i = 0; i < 3; i++) {
+                client.ping(null, EmptyRequestProto.newBuilder().build());
+                CompletableFuture<EmptyResponseProto> ping = Client.getAsyncReturnValue();
+                ping.get();
+            }
+            sleep.get();
+        } finally {
+            Client.setAsynchronousMode(false);
+        }
+        Assert.assertEquals(2, server.getNumOpenConnections());
+        testProtoBufRpc(client);
+    }
+
+    @Test (timeout=5000)
+    public void testCallTimeout() throws Exception {
+        RPC.setProtocolEngine(conf, TestRpcService.class, ProtobufRpcEngine.class);
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0, addr, conf,
+                NetUtils.getDefaultSocketFactory(), 0, 200);
+        // the only handler sleeps past the deadline of the call
+        try {
+            client.sleep(null, SleepRequestProto.newBuilder()
+                    .setMilliSeconds(600).build());
+            Assert.fail("expected the call to time out");
+        } catch (ServiceException se) {
+            Assert.assertTrue(se.getCause() instanceof SocketTimeoutException);
+        }
+        // this call expires in the queue, so the server drops it
+        try {
+            client.ping(null, EmptyRequestProto.newBuilder().build());
+            Assert.fail("expected the call to time out");
+        } catch (ServiceException se) {
+            Assert.assertTrue(se.getCause() instanceof SocketTimeoutException);
+        }
+        // the connection is still usable
+        getClient().ping(null, EmptyRequestProto.newBuilder().build());
+        Assert.assertEquals(1, server.rpcMetrics.rpcDeadlineExceeded());
+    }
+
+    @Test (timeout=10000)
+    public void testLoadShedding() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_CODEL_TARGET_KEY, 5);
+        RPC.Server sheddingServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).setNumHandlers(1).build();
+        sheddingServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(sheddingServer), conf);
+        try {
+            // the single handler falls further and further behind
+            List<CompletableFuture<EmptyResponseProto>> futures =
+                    new ArrayList<CompletableFuture<EmptyResponseProto>>();
+            Client.setAsynchronousMode(true);
+            try {
+                for (int i = 0; i < 20; i++) {
+                    client.sleep(null,
+                            SleepRequestProto.newBuilder().setMilliSeconds(50).build());
+                    futures.add(Client.<EmptyResponseProto>getAsyncReturnValue());
+                }
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+            futures.get(0).get();
+            int shed = 0;
+            for (CompletableFuture<EmptyResponseProto> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    while (!(t instanceof RemoteException)) {
+                        t = t.getCause();
+                    }
+                    RemoteException re = (RemoteException) t;
+                    Assert.assertEquals(RpcServerOverloadedException.class.getName(),
+                            re.getClassName());
+                    Assert.assertEquals(RpcErrorCodeProto.ERROR_SERVER_OVERLOADED,
+                            re.getErrorCode());
+                    shed++;
+                }
+            }
+            Assert.assertTrue(shed > 0);
+            Assert.assertEquals(shed, sheddingServer.rpcMetrics.rpcOverloaded());
+
+            // the queue drained, calls are served again
+            Thread.sleep(300);
+            client.ping(null, EmptyRequestProto.newBuilder().build());
+        } finally {
+            RPC.stopProxy(client);
+            sheddingServer.stop();
+        }
+    }
+
+    @Test (timeout=10000)
+    public void testRateLimit() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_RATE_KEY, 5);
+        RPC.Server limitedServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        limitedServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(limitedServer), conf);
+        try {
+            int throttled = 0;
+            for (int i = 0; i < 10; i++) {
+                try {
+                    client.ping(null, EmptyRequestProto.newBuilder().build());
+                } catch (ServiceException se) {
+                    RemoteException re = (RemoteException) se.getCause();
+                    Assert.assertEquals(RpcThrottledException.class.getName(),
+                            re.getClassName());
+                    Assert.assertEquals(RpcErrorCodeProto.ERROR_THROTTLED, re.getErrorCode());
+                    throttled++;
+                }
+            }
+            // a burst of a second's worth of calls gets through
+            Assert.assertTrue("throttled " + throttled, throttled > 0 && throttled <= 5);
+            Assert.assertEquals(throttled, limitedServer.rpcMetrics.rpcThrottled());
+
+            // the connection is still usable once the bucket fills up
+            Thread.sleep(300);
+            client.ping(null, EmptyRequestProto.newBuilder().build());
+        } finally {
+            RPC.stopProxy(client);
+            limitedServer.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testThrottledResponseWriteFails() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_RATE_KEY, 1);
+        RPC.Server limitedServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        try {
+            SocketChannel[] socket = newSocket();
+            Server.Connection connection = newConnection(limitedServer, socket[1]);
+            byte[] clientId = ClientId.getClientId();
+            readPing(limitedServer, connection, clientId, 0, 0);
+            // the client is gone by the time its call is throttled
+            socket[0].close();
+            socket[1].close();
+            try {
+                readPing(limitedServer, connection, clientId, 1, 0);
+                Assert.fail("the throttled response was written");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals(1, limitedServer.rpcMetrics.rpcThrottled());
+            // the request buffer of the throttled call is back in the pool once
+            BufferPool requestBuffers = getRequestBuffers(limitedServer);
+            Assert.assertNotSame(requestBuffers.take(16), requestBuffers.take(16));
+        } finally {
+            limitedServer.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testRetryCache() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RETRYCACHE_SIZE_KEY, 100);
+        RPC.Server cachingServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        cachingServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(cachingServer), conf);
+        try {
+            final int callId = 1 << 30;
+            Client.setCallIdAndRetryCount(callId, 0);
+            Assert.assertEquals("first", client.echo(null, EchoRequestProto.newBuilder()
+                    .setMessage("first").build()).getMessage());
+            // the retry is not served again: it gets the first response
+            Client.setCallIdAndRetryCount(callId, 1);
+            Assert.assertEquals("first", client.echo(null, EchoRequestProto.newBuilder()
+                    .setMessage("retry").build()).getMessage());
+            Assert.assertEquals(1, cachingServer.rpcMetrics.rpcRetryCacheHits());
+
+            // other calls are served as usual
+            Client.setCallIdAndRetryCount(callId + 1, 0);
+            Assert.assertEquals("second", client.echo(null, EchoRequestProto.newBuilder()
+                    .setMessage("second").build()).getMessage());
+        } finally {
+            RPC.stopProxy(client);
+            cachingServer.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testRetryAfterDisconnect() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RETRYCACHE_SIZE_KEY, 100);
+        RPC.Server cachingServer = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        cachingServer.start();
+        SocketChannel[] first = newSocket();
+        SocketChannel[] second = newSocket();
+        try {
+            // the client is gone before its call is answered
+            Server.Connection connection = newConnection(cachingServer, first[1]);
+            first[0].close();
+            first[1].close();
+            byte[] clientId = ClientId.getClientId();
+            readPing(cachingServer, connection, clientId, 5, 0);
+
+            // its retry, over a new connection, gets the response all the same
+            readPing(cachingServer, newConnection(cachingServer, second[1]),
+                    clientId, 5, 1);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (length.hasRemaining()) {
+                Assert.assertTrue(second[0].read(length) >= 0);
+            }
+            length.flip();
+            ByteBuffer response = ByteBuffer.allocate(length.getInt());
+            while (response.hasRemaining()) {
+                Assert.assertTrue(second[0].read(response) >= 0);
+            }
+            RpcResponseHeaderProto header = RpcResponseHeaderProto.parseDelimitedFrom(
+                    new ByteArrayInputStream(response.array()));
+            Assert.assertEquals(5, header.getCallId());
+            Assert.assertEquals(RpcResponseHeaderProto.RpcStatusProto.SUCCESS,
+                    header.getStatus());
+            Assert.assertEquals(1, cachingServer.rpcMetrics.rpcRetryCacheHits());
+        } finally {
+            second[0].close();
+            second[1].close();
+            cachingServer.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testIdleConnectionsClosed() throws Exception {
+        Option serverConf = new Option(conf);
+        serverConf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY, 100);
+        serverConf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_IDLETHRESHOLD_KEY, 0);
+        RPC.Server idleServer = new RPC.Builder(serverConf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        idleServer.start();
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0,
+                NetUtils.getConnectAddress(idleServer), conf);
+        try {
+            client.ping(null, EmptyRequestProto.newBuilder().build());
+            Assert.assertEquals(1, idleServer.getNumOpenConnections());
+            // the server closes the connection after 200 ms without a call
+            long start = Time.monotonicNow();
+            while (idleServer.getNumOpenConnections() > 0) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(Time.monotonicNow() - start >= 100);
+        } finally {
+            RPC.stopProxy(client);
+            idleServer.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testHedgedCalls() throws Exception {
+        RPC.Server server2 = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        server2.start();
+        RPC.setProtocolEngine(conf, TestIdempotentRpcService.class,
+                ProtobufRpcEngine.class);
+        TestIdempotentRpcService client = RPC.getHedgingProxy(
+                TestIdempotentRpcService.class, 0,
+                Arrays.asList(addr, NetUtils.getConnectAddress(server2)), conf);
+        try {
+            // keep the only handler of the first server busy
+            Client.setAsynchronousMode(true);
+            try {
+                getClient().sleep(null, SleepRequestProto.newBuilder()
+                        .setMilliSeconds(2000).build());
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+            Thread.sleep(100);
+
+            // the calls sent to the first server are answered by the second
+            long start = Time.monotonicNow();
+            for (int i = 0; i < 4; i++) {
+                client.ping(null, EmptyRequestProto.newBuilder().build());
+            }
+            Assert.assertTrue(Time.monotonicNow() - start < 1000);
+        } finally {
+            RPC.stopProxy(client);
+            server2.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testBalancedCalls() throws Exception {
+        RPC.Server server2 = new RPC.Builder(conf).setProtocol(TestRpcService.class)
+                .setInstance(TestProtobufRpcProto.newReflectiveBlockingService(
+                        new PBServerImpl()))
+                .setBindAddress(ADDRESS).setPort(PORT).build();
+        server2.start();
+        RPC.setProtocolEngine(conf, TestRpcService.class, ProtobufRpcEngine.class);
+        TestRpcService client = RPC.getBalancingProxy(TestRpcService.class, 0,
+                Arrays.asList(addr, NetUtils.getConnectAddress(server2)), conf);
+        try {
+            // keep the only handler of one server busy
+            CompletableFuture<EmptyResponseProto> sleep;
+            Client.setAsynchronousMode(true);
+            try {
+                client.sleep(null, SleepRequestProto.newBuilder()
+                        .setMilliSeconds(1000).build());
+                sleep = Client.getAsyncReturnValue();
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+
+            // the calls avoid the busy server
+            long start = Time.monotonicNow();
+            for (int i = 0; i < 5; i++) {
+                client.ping(null, EmptyRequestProto.newBuilder().build());
+            }
+            Assert.assertTrue(Time.monotonicNow() - start < 800);
+            sleep.get();
+        } finally {
+            RPC.stopProxy(client);
+            server2.stop();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testBalancedCallsAvoidDeadServer() throws Exception {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        InetSocketAddress dead =
+                (InetSocketAddress) listener.socket().getLocalSocketAddress();
+        listener.close();
+        Option clientConf = new Option(conf);
+        clientConf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECT_MAX_RETRIES_KEY, 0);
+        RPC.setProtocolEngine(clientConf, TestRpcService.class, ProtobufRpcEngine.class);
+        TestRpcService client = RPC.getBalancingProxy(TestRpcService.class, 0,
+                Arrays.asList(addr, dead), clientConf);
+        try {
+            // the calls failing fast do not draw the others to the dead server
+            int failed = 0;
+            for (int i = 0; i < 20; i++) {
+                try {
+                    client.ping(null, EmptyRequestProto.newBuilder().build());
+                } catch (ServiceException se) {
+                    failed++;
+                }
+            }
+            Assert.assertEquals(1, failed);
+        } finally {
+            RPC.stopProxy(client);
+        }
+    }
+
+    /** A socket factory of its own, to get a client of its own. */
+    private static class SelectorSocketFactory extends StandardSocketFactory {
+    }
+
+    @Test (timeout=10000)
+    public void testSelectorClient() throws Exception {
+        conf.setInt(CommonConfigurationKeys.IPC_CLIENT_SELECTOR_THREADS_KEY, 2);
+        conf.setInt(CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_SERVER_KEY, 4);
+        RPC.setProtocolEngine(conf, TestRpcService.class, ProtobufRpcEngine.class);
+        TestRpcService client = RPC.getProxy(TestRpcService.class, 0, addr, conf,
+                new SelectorSocketFactory());
+        try {
+            testProtoBufRpc(client);
+
+            final String longString = StringUtils.repeat("X", 500);
+            EchoResponseProto echoResponse = client.echo(null,
+                    EchoRequestProto.newBuilder().setMessage(longString).build());
+            Assert.assertEquals(longString, echoResponse.getMessage());
+
+            List<CompletableFuture<EchoResponseProto>> futures =
+                    new ArrayList<CompletableFuture<EchoResponseProto>>();
+            Client.setAsynchronousMode(true);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    client.echo(null, EchoRequestProto.newBuilder()
+                            .setMessage("hello" + i).build());
+                    CompletableFuture<EchoResponseProto> future =
+                            Client.getAsyncReturnValue();
+                    futures.add(future);
+                }
+            } finally {
+                Client.setAsynchronousMode(false);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals("hello" + i, futures.get(i).get().getMessage());
+            }
+        } finally {
+            RPC.stopProxy(client);
+        }
+    }
+
     @Test(timeout=6000)
     public void testExtraLongRpc() throws Exception {
         TestRpcService2 client = getClient2();
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the load shedding on queue delay.
+ */
+public class TestQueueDelayController {
+
+    @Test
+    public void testShedsOnlyOnStandingDelay() {
+        QueueDelayController controller = new QueueDelayController(10, 100, 0);
+        // a burst: some calls wait long, but others get through at once
+        Assert.assertFalse(controller.reject(50, 10));
+        Assert.assertFalse(controller.reject(0, 20));
+        Assert.assertFalse(controller.reject(80, 100));
+        Assert.assertFalse(controller.isOverloaded());
+
+        // every call of the next interval waits over the target
+        Assert.assertFalse(controller.reject(30, 150));
+        Assert.assertFalse(controller.reject(40, 199));
+        Assert.assertFalse(controller.reject(15, 200));
+        Assert.assertTrue(controller.isOverloaded());
+        Assert.assertTrue(controller.reject(21, 210));
+        Assert.assertFalse(controller.reject(20, 220));
+
+        // the queue drained: calls are served again after an interval
+        Assert.assertFalse(controller.reject(2, 250));
+        Assert.assertTrue(controller.reject(40, 260));
+        Assert.assertFalse(controller.reject(40, 300));
+        Assert.assertFalse(controller.isOverloaded());
+    }
+
+    @Test
+    public void testIdleIntervalIsNotOverload() {
+        QueueDelayController controller = new QueueDelayController(10, 100, 0);
+        // no call at all in the first intervals, then a burst
+        Assert.assertFalse(controller.reject(0, 500));
+        Assert.assertFalse(controller.isOverloaded());
+        Assert.assertFalse(controller.reject(25, 510));
+
+        // a standing delay, then the queue goes idle for a while
+        Assert.assertFalse(controller.reject(30, 600));
+        Assert.assertFalse(controller.reject(30, 650));
+        Assert.assertFalse(controller.reject(30, 1000));
+        Assert.assertFalse(controller.isOverloaded());
+        Assert.assertFalse(controller.reject(25, 1010));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTarget() {
+        new QueueDelayController(0, 100, 0);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+import com.google.common.primitives.Ints;
+
+/**
+ * Tests for the rates of calls of the clients and protocols.
+ */
+public class TestRateLimiter {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** @return a call whose client id is the given number */
+    private static Server.Call newCall(int id) {
+        return new Server.Call(id, 0, null, null, RPC.RpcKind.RPC_BUILTIN,
+                Ints.toByteArray(id));
+    }
+
+    @Test
+    public void testBurstThenRate() {
+        RateLimiter.Rate rate = RateLimiter.Rate.create(10, 3);
+        AtomicLong bucket = new AtomicLong(Long.MIN_VALUE);
+        long now = 1000 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, rate.acquire(bucket, now));
+        }
+        Assert.assertEquals(SECOND / 10, rate.acquire(bucket, now));
+        // a token every 100 ms
+        Assert.assertEquals(0, rate.acquire(bucket, now + SECOND / 10));
+        Assert.assertTrue(rate.acquire(bucket, now + SECOND / 10) > 0);
+        // the bucket fills up again, to the burst only
+        now += 10 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, rate.acquire(bucket, now));
+        }
+        Assert.assertTrue(rate.acquire(bucket, now) > 0);
+
+        Assert.assertNull(RateLimiter.Rate.create(0, 3));
+    }
+
+    @Test
+    public void testClientsAndProtocols() {
+        Option conf = new Option();
+        Assert.assertNull(RateLimiter.create(conf));
+
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_CLIENT_RATE_KEY, 2);
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_RATELIMIT_PROTOCOL_RATE_KEY
+                + ".limited", 3);
+        RateLimiter limiter = RateLimiter.create(conf);
+        // each client has a bucket of its own
+        for (int id = 0; id < 3; id++) {
+            Assert.assertEquals(0, limiter.acquire(newCall(id), "free"));
+            Assert.assertEquals(0, limiter.acquire(newCall(id), "free"));
+            Assert.assertTrue(limiter.acquire(newCall(id), "free") > 0);
+        }
+        // a protocol is limited over all the clients
+        Assert.assertEquals(0, limiter.acquire(newCall(3), "limited"));
+        Assert.assertEquals(0, limiter.acquire(newCall(3), "limited"));
+        Assert.assertEquals(0, limiter.acquire(newCall(4), "limited"));
+        Assert.assertTrue(limiter.acquire(newCall(4), "limited") > 0);
+        // a call refused by its protocol does not count for its client
+        Assert.assertTrue(limiter.acquire(newCall(5), "limited") > 0);
+        Assert.assertTrue(limiter.acquire(newCall(5), "limited") > 0);
+        Assert.assertEquals(0, limiter.acquire(newCall(5), "free"));
+        Assert.assertEquals(0, limiter.acquire(newCall(5), "free"));
+    }
+}
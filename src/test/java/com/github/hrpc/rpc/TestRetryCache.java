@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.hrpc.io.LongWritable;
+import com.google.common.primitives.Ints;
+
+/**
+ * Tests for the cache of the outcomes of the calls, for their retries.
+ */
+public class TestRetryCache {
+
+    private static Server.Call newCall(int clientId, int callId, int retry) {
+        return new Server.Call(callId, retry, null, null, RPC.RpcKind.RPC_BUILTIN,
+                Ints.toByteArray(clientId));
+    }
+
+    @Test
+    public void testRetries() {
+        RetryCache cache = new RetryCache(100, 1000);
+        Server.Call call = newCall(1, 7, 0);
+        Assert.assertNull(cache.lookup(call, 0));
+        Assert.assertNotNull(call.retryEntry);
+        // another client, or another call, is not a retry
+        Assert.assertNull(cache.lookup(newCall(2, 7, 0), 0));
+        Assert.assertNull(cache.lookup(newCall(1, 8, 0), 0));
+
+        // a retry of a call in progress waits for it
+        Server.Call retry = newCall(1, 7, 1);
+        Assert.assertSame(RetryCache.PENDING, cache.lookup(retry, 10));
+        LongWritable value = new LongWritable(42);
+        List<Server.Call> retries = cache.complete(call.retryEntry, value, null, 20);
+        Assert.assertEquals(1, retries.size());
+        Assert.assertSame(retry, retries.get(0));
+
+        // a retry of a completed call gets its outcome, until it expires
+        RetryCache.Entry entry = cache.lookup(newCall(1, 7, 2), 500);
+        Assert.assertSame(value, entry.getValue());
+        Assert.assertNull(entry.getError());
+        Server.Call late = newCall(1, 7, 3);
+        Assert.assertNull(cache.lookup(late, 1020));
+        Assert.assertNotSame(call.retryEntry, late.retryEntry);
+
+        // a call the server failed is served again when retried
+        Assert.assertTrue(cache.remove(late.retryEntry).isEmpty());
+        Assert.assertNull(cache.lookup(newCall(1, 7, 4), 1030));
+
+        // calls without a client id are not cached
+        Server.Call anonymous = new Server.Call(7, 0, null, null);
+        Assert.assertNull(cache.lookup(anonymous, 0));
+        Assert.assertNull(anonymous.retryEntry);
+    }
+
+    @Test
+    public void testPendingExpiry() {
+        RetryCache cache = new RetryCache(100, 1000);
+        Server.Call call = newCall(1, 7, 0);
+        Assert.assertNull(cache.lookup(call, 0));
+        Server.Call retry = newCall(1, 7, 1);
+        Assert.assertSame(RetryCache.PENDING, cache.lookup(retry, 500));
+        // a call never completed is forgotten, and its next retry served
+        Server.Call late = newCall(1, 7, 2);
+        Assert.assertNull(cache.lookup(late, 1000));
+        Assert.assertEquals(1, cache.size());
+        // the retries waiting on it are still answered if it completes
+        List<Server.Call> retries = cache.complete(call.retryEntry, null, null, 1100);
+        Assert.assertEquals(1, retries.size());
+        Assert.assertSame(retry, retries.get(0));
+    }
+
+    @Test
+    public void testCapacity() {
+        RetryCache cache = new RetryCache(32, 1000);
+        for (int i = 0; i < 1000; i++) {
+            Server.Call call = newCall(i, i, 0);
+            Assert.assertNull(cache.lookup(call, 0));
+            cache.complete(call.retryEntry, null, null, 0);
+        }
+        Assert.assertTrue(cache.size() <= 32);
+    }
+}
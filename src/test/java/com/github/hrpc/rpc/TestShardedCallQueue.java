@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.rpc;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.hrpc.rpc.MultithreadedTestUtil.TestContext;
+import com.github.hrpc.util.CommonConfigurationKeys;
+import com.github.hrpc.util.Option;
+import com.google.common.primitives.Ints;
+
+/**
+ * Tests for the call queue split into shards.
+ */
+public class TestShardedCallQueue {
+
+    /** @return a call whose client id is the given number */
+    private static Server.Call newCall(int id) {
+        return new Server.Call(id, 0, null, null, RPC.RpcKind.RPC_BUILTIN,
+                Ints.toByteArray(id));
+    }
+
+    private static int idOf(Server.Call call) {
+        return Ints.fromByteArray(call.getClientId());
+    }
+
+    private static Option newConf(int shards) {
+        Option conf = new Option();
+        conf.setInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_SHARDS_KEY, shards);
+        return conf;
+    }
+
+    @Test
+    public void testCapacityAndStealing() throws Exception {
+        CallQueue queue = new ShardedCallQueue(10, newConf(4));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(queue.offer(newCall(i)));
+        }
+        Assert.assertFalse(queue.offer(newCall(10)));
+        Assert.assertEquals(10, queue.size());
+
+        // a single handler gets the calls of every shard
+        boolean[] taken = new boolean[10];
+        for (int i = 0; i < 10; i++) {
+            taken[idOf(queue.take())] = true;
+        }
+        for (boolean t : taken) {
+            Assert.assertTrue(t);
+        }
+        Assert.assertEquals(0, queue.size());
+        Assert.assertTrue(queue.offer(newCall(10)));
+    }
+
+    @Test(timeout=20000)
+    public void testConcurrentReadersAndHandlers() throws Exception {
+        final int readers = 4;
+        final int callsPerReader = 20000;
+        final CallQueue queue = new ShardedCallQueue(64, newConf(3));
+        final AtomicIntegerArray taken = new AtomicIntegerArray(readers * callsPerReader);
+        TestContext ctx = new TestContext();
+        for (int i = 0; i < readers; i++) {
+            final int first = i * callsPerReader;
+            ctx.addThread(new MultithreadedTestUtil.TestingThread(ctx) {
+                @Override
+                public void doWork() throws Exception {
+                    for (int j = 0; j < callsPerReader; j++) {
+                        queue.put(newCall(first + j));
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < 8; i++) {
+            ctx.addThread(new MultithreadedTestUtil.TestingThread(ctx) {
+                @Override
+                public void doWork() throws Exception {
+                    for (int j = 0; j < readers * callsPerReader / 8; j++) {
+                        Assert.assertEquals(1, taken.incrementAndGet(idOf(queue.take())));
+                    }
+                }
+            });
+        }
+        ctx.startThreads();
+        ctx.waitFor(20000);
+        ctx.stop();
+        for (int i = 0; i < taken.length(); i++) {
+            Assert.assertEquals(1, taken.get(i));
+        }
+        Assert.assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hrpc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the hashed timer wheel.
+ */
+public class TestTimerWheel {
+
+    /** A timeout that records its runs. */
+    private static class Recorder extends TimerWheel.Timeout {
+        private final int id;
+        private final List<Integer> runs;
+
+        Recorder(int id, List<Integer> runs) {
+            this.id = id;
+            this.runs = runs;
+        }
+
+        @Override
+        public void run() {
+            runs.add(id);
+        }
+    }
+
+    @Test
+    public void testScheduleAndCancel() {
+        TimerWheel wheel = new TimerWheel("test timer", 10, 8);
+        List<Integer> runs = new ArrayList<Integer>();
+        Recorder soon = new Recorder(1, runs);
+        Recorder later = new Recorder(2, runs);
+        Recorder cancelled = new Recorder(3, runs);
+        // a turn of the wheel is 80 ms: later goes round more than once
+        long start = Time.monotonicNow();
+        wheel.schedule(soon, 30);
+        wheel.schedule(later, 250);
+        wheel.schedule(cancelled, 30);
+        Assert.assertTrue(wheel.cancel(cancelled));
+        Assert.assertFalse(wheel.cancel(cancelled));
+
+        wheel.advance(start + 20);
+        Assert.assertTrue(runs.isEmpty());
+        long now = Time.monotonicNow();
+        wheel.advance(now + 40);
+        Assert.assertEquals(1, runs.size());
+        Assert.assertEquals(1, (int) runs.get(0));
+        Assert.assertFalse(wheel.isScheduled(soon));
+        Assert.assertTrue(wheel.isScheduled(later));
+
+        // rescheduling moves the timeout
+        wheel.schedule(later, 1000);
+        wheel.advance(Time.monotonicNow() + 300);
+        Assert.assertEquals(1, runs.size());
+        wheel.advance(Time.monotonicNow() + 1100);
+        Assert.assertEquals(2, runs.size());
+        Assert.assertEquals(2, (int) runs.get(1));
+        Assert.assertFalse(wheel.isScheduled(later));
+    }
+
+    @Test (timeout=5000)
+    public void testWorker() throws Exception {
+        TimerWheel wheel = new TimerWheel("test timer", 10, 8);
+        wheel.start();
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            // the timeout reschedules itself once
+            TimerWheel.Timeout timeout = new TimerWheel.Timeout() {
+                private int runs;
+
+                @Override
+                public void run() {
+                    if (++runs == 1) {
+                        wheel.schedule(this, 50);
+                    } else {
+                        latch.countDown();
+                    }
+                }
+            };
+            long start = Time.monotonicNow();
+            wheel.schedule(timeout, 50);
+            Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+            Assert.assertTrue(Time.monotonicNow() - start >= 100);
+        } finally {
+            wheel.stop();
+        }
+    }
+}